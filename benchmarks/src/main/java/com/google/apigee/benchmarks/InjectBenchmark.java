@@ -0,0 +1,143 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.callouts.wssecusernametoken.Inject;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import com.google.apigee.util.StreamUtils;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs Inject.execute end to end, through the fakes from the callout test tree, for the messages
+ * in sample-data padded out to the given size. Narrow the parameter space from the command line,
+ * eg -p size=1KB -p engine=splice.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InjectBenchmark {
+  @Param({"request1-soap1_1.xml", "request2-soap1_2.xml"})
+  public String sample;
+
+  @Param({"TEXT", "DIGEST"})
+  public String encoding;
+
+  @Param({"", "180s"})
+  public String expiry;
+
+  @Param({"1KB", "64KB", "1MB", "50MB"})
+  public String size;
+
+  @Param({"dom", "stax", "splice"})
+  public String engine;
+
+  private byte[] content;
+  private Inject callout;
+  private FakeMessage message;
+  private FakeMessageContext msgCtxt;
+  private FakeExecutionContext exeCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    content = pad(loadSample(sample), parseSize(size));
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Secret123");
+    props.put("password-encoding", encoding);
+    props.put("expiry", expiry);
+    props.put("engine", engine);
+    props.put("output-variable", "output");
+    callout = new Inject(props);
+
+    message = new FakeMessage();
+    msgCtxt = new FakeMessageContext(message, false);
+    exeCtxt = new FakeExecutionContext();
+  }
+
+  private static byte[] loadSample(String name) throws Exception {
+    try (InputStream in = InjectBenchmark.class.getResourceAsStream("/sample-data/" + name)) {
+      if (in == null) {
+        throw new IllegalStateException("missing sample " + name);
+      }
+      return StreamUtils.readAllBytes(in);
+    }
+  }
+
+  static int parseSize(String size) {
+    if (size.endsWith("MB")) {
+      return Integer.parseInt(size.substring(0, size.length() - 2)) * 1024 * 1024;
+    }
+    if (size.endsWith("KB")) {
+      return Integer.parseInt(size.substring(0, size.length() - 2)) * 1024;
+    }
+    return Integer.parseInt(size);
+  }
+
+  /* Inserts filler elements at the end of the soap Body, to reach the target size. */
+  static byte[] pad(byte[] sample, int targetSize) {
+    String soap = new String(sample, StandardCharsets.UTF_8);
+    int bodyEnd = soap.lastIndexOf("</", soap.lastIndexOf(":Body>"));
+    byte[] filler =
+        "<filler>The quick brown fox jumps over the lazy dog.</filler>\n"
+            .getBytes(StandardCharsets.UTF_8);
+    int count = Math.max(0, (targetSize - sample.length) / filler.length);
+    byte[] head = soap.substring(0, bodyEnd).getBytes(StandardCharsets.UTF_8);
+    byte[] tail = soap.substring(bodyEnd).getBytes(StandardCharsets.UTF_8);
+    byte[] padded = new byte[head.length + count * filler.length + tail.length];
+    System.arraycopy(head, 0, padded, 0, head.length);
+    int offset = head.length;
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(filler, 0, padded, offset, filler.length);
+      offset += filler.length;
+    }
+    System.arraycopy(tail, 0, padded, offset, tail.length);
+    return padded;
+  }
+
+  @Benchmark
+  public Object execute() {
+    message.setContent(new ByteArrayInputStream(content));
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException(String.valueOf(msgCtxt.getVariable("wssec_error")));
+    }
+    return msgCtxt.getVariable("output");
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON to jmh-result.json unless the command line
+ * specifies a result format or file. Keep the JSON files to compare one release with the next.
+ * All other arguments go to JMH unchanged, eg
+ *
+ * <pre>
+ *   java -jar target/benchmarks.jar InjectBenchmark -p size=1KB -rff 20240605.json
+ * </pre>
+ */
+public class Main {
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+    if (!jmhArgs.contains("-rf")) {
+      jmhArgs.add("-rf");
+      jmhArgs.add("json");
+    }
+    if (!jmhArgs.contains("-rff")) {
+      jmhArgs.add("-rff");
+      jmhArgs.add("jmh-result.json");
+    }
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+  }
+}
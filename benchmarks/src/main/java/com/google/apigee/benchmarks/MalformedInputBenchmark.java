@@ -0,0 +1,133 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.benchmarks;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.callouts.wssecusernametoken.Inject;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * The cost of rejecting a payload that is not SOAP: JSON, an HTML error page, or an XML document
+ * with the wrong root element. execute runs Inject.execute, which rejects the payload from its
+ * first few hundred bytes; fullParse is what the rejection cost before, a full DOM parse followed
+ * by the check of the root element.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MalformedInputBenchmark {
+  @Param({"json", "html", "xml"})
+  public String payload;
+
+  @Param({"1KB", "1MB"})
+  public String size;
+
+  @Param({"dom", "stax", "splice"})
+  public String engine;
+
+  private byte[] content;
+  private Inject callout;
+  private FakeMessage message;
+  private FakeMessageContext msgCtxt;
+  private FakeExecutionContext exeCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    content = build(payload, InjectBenchmark.parseSize(size));
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Secret123");
+    props.put("engine", engine);
+    props.put("output-variable", "output");
+    callout = new Inject(props);
+
+    message = new FakeMessage();
+    msgCtxt = new FakeMessageContext(message, false);
+    exeCtxt = new FakeExecutionContext();
+  }
+
+  private static byte[] build(String payload, int targetSize) {
+    String head;
+    String item;
+    String tail;
+    if (payload.equals("json")) {
+      head = "{\"items\": [";
+      item = "{\"text\": \"The quick brown fox jumps over the lazy dog.\"},\n";
+      tail = "{}]}";
+    } else if (payload.equals("html")) {
+      head = "<!DOCTYPE html>\n<html><head><title>502 Bad Gateway</title></head><body>\n";
+      item = "<p>The quick brown fox jumps over the lazy dog.</p>\n";
+      tail = "</body></html>";
+    } else {
+      head = "<?xml version='1.0' encoding='UTF-8'?>\n<order xmlns='urn:example:orders'>\n";
+      item = "<item>The quick brown fox jumps over the lazy dog.</item>\n";
+      tail = "</order>";
+    }
+    StringBuilder sb = new StringBuilder(targetSize + item.length()).append(head);
+    while (sb.length() + tail.length() < targetSize) {
+      sb.append(item);
+    }
+    return sb.append(tail).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public Object execute() {
+    message.setContent(new ByteArrayInputStream(content));
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+    if (result != ExecutionResult.ABORT) {
+      throw new IllegalStateException("accepted a " + payload + " payload");
+    }
+    return msgCtxt.getVariable("wssec_error");
+  }
+
+  @Benchmark
+  public Object fullParse() {
+    try {
+      Document doc = XmlUtils.parseXml(new ByteArrayInputStream(content));
+      if (!"Envelope".equals(doc.getDocumentElement().getLocalName())) {
+        throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
+      }
+      return doc;
+    } catch (Exception e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.benchmarks;
+
+import com.google.apigee.util.NonceReplayCache;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Check-and-insert throughput of NonceReplayCache with one thread per core, all sharing one cache.
+ * Each thread generates distinct nonces into a reused StringBuilder, so the benchmark measures
+ * the cache and not the nonce generation. The short window keeps the cache from filling up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class NonceReplayCacheBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class SharedCache {
+    NonceReplayCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      cache = new NonceReplayCache(1000L, 16 * 1024 * 1024);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Nonces {
+    private static final AtomicInteger threads = new AtomicInteger();
+    private final StringBuilder nonce = new StringBuilder(32);
+    private String prefix;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      prefix = "t" + threads.getAndIncrement() + "-";
+    }
+
+    CharSequence next() {
+      nonce.setLength(0);
+      return nonce.append(prefix).append(counter++);
+    }
+
+    CharSequence previous() {
+      return nonce;
+    }
+  }
+
+  @Benchmark
+  public NonceReplayCache.Result checkAndRecord(SharedCache shared, Nonces nonces) {
+    return shared.cache.checkAndRecord(nonces.next());
+  }
+
+  /* Half of the checks are replays of the nonce just recorded. */
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public NonceReplayCache.Result checkAndRecord_halfReplays(SharedCache shared, Nonces nonces) {
+    NonceReplayCache.Result result = shared.cache.checkAndRecord(nonces.next());
+    shared.cache.checkAndRecord(nonces.previous());
+    return result;
+  }
+}
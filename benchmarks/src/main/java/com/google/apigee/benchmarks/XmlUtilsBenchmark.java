@@ -0,0 +1,110 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.benchmarks;
+
+import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Compares the per-request cost of building a DocumentBuilder and Transformer from new factories,
+ * as XmlUtils did previously, against the per-thread instances that XmlUtils now reuses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlUtilsBenchmark {
+  private static final String soap =
+      "<soapenv:Envelope xmlns:ns1='http://ws.example.com/'\n"
+          + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+          + "  <soapenv:Body>\n"
+          + "    <ns1:sumResponse>\n"
+          + "      <ns1:return>9</ns1:return>\n"
+          + "    </ns1:sumResponse>\n"
+          + "  </soapenv:Body>\n"
+          + "</soapenv:Envelope>";
+
+  private byte[] content;
+  private Document document;
+
+  @Setup
+  public void setup() throws Exception {
+    content = soap.getBytes(StandardCharsets.UTF_8);
+    document = XmlUtils.parseXml(new ByteArrayInputStream(content));
+  }
+
+  /* the way XmlUtils.getBuilder() worked before builders were reused */
+  private static DocumentBuilder newBuilder() throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    DocumentBuilder builder = factory.newDocumentBuilder();
+    builder.setEntityResolver((publicId, systemId) -> new InputSource(new StringReader("")));
+    return builder;
+  }
+
+  @Benchmark
+  public Document parse_newFactory() throws Exception {
+    return newBuilder().parse(new InputSource(new ByteArrayInputStream(content)));
+  }
+
+  @Benchmark
+  public Document parse_reused() throws Exception {
+    return XmlUtils.parseXml(new ByteArrayInputStream(content));
+  }
+
+  @Benchmark
+  public byte[] serialize_newFactory() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    transformer.transform(new DOMSource(document), new StreamResult(baos));
+    return baos.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] serialize_reused() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    XmlUtils.write(document, baos);
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,416 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import com.google.apigee.util.TimeResolver;
+import com.google.apigee.util.XmlUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+
+/**
+ * Injects UsernameTokens into many SOAP envelopes at once, eg to prepare a load test or to replay
+ * captured traffic. It uses the same engines as the {@link Inject} callout, through {@link
+ * TokenInjector}, and needs nothing from the Apigee runtime:
+ *
+ * <pre>
+ * java -cp apigee-wssecusernametoken-20240605.jar \
+ *     com.google.apigee.callouts.wssecusernametoken.BatchInject \
+ *     --username emil@gaffanon.com --password Albatross1 --password-encoding DIGEST \
+ *     --input captured/ --output stamped/
+ * </pre>
+ *
+ * <p>The input is either a directory of envelopes, one per file, or a JSONL file with one envelope
+ * per line, as a JSON string. The output has the same form; in a JSONL output, an envelope that
+ * fails is written as null, so the lines stay in step. Envelopes are processed in parallel on
+ * a ForkJoinPool, with a bounded number in flight, so memory use does not grow with the size of the
+ * input.
+ */
+public final class BatchInject {
+  private static final String USAGE =
+      "usage: BatchInject --input DIR|FILE.jsonl --output DIR|FILE.jsonl"
+          + " --username USER --password PASSWORD\n"
+          + "    [--password-encoding TEXT|DIGEST] [--expiry 5m] [--engine STAX|SPLICE|DOM]\n"
+          + "    [--node-id ID] [--threads N]";
+
+  private final TokenInjector injector = new TokenInjector();
+  private final Inject.PolicyConfiguration policyConfiguration;
+  private final Inject.Engine engine;
+  private final ForkJoinPool pool;
+  private final int maxInFlight;
+
+  private long envelopes;
+  private long failures;
+  private long bytes;
+
+  private BatchInject(
+      Inject.PolicyConfiguration policyConfiguration, Inject.Engine engine, int threads) {
+    this.policyConfiguration = policyConfiguration;
+    this.engine = engine;
+    this.pool = new ForkJoinPool(threads);
+    this.maxInFlight = 4 * threads;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int status = run(args);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+
+  /* Returns the exit status: 0 on success, 1 if any envelope failed, 2 for a usage error. */
+  static int run(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    if (options == null
+        || !options.containsKey("input")
+        || !options.containsKey("output")
+        || !options.containsKey("username")
+        || !options.containsKey("password")) {
+      System.err.println(USAGE);
+      return 2;
+    }
+    Inject.PasswordEncoding passwordEncoding =
+        parseEnum(Inject.PasswordEncoding.class, options.getOrDefault("password-encoding", "TEXT"));
+    Inject.Engine engine = parseEnum(Inject.Engine.class, options.getOrDefault("engine", "STAX"));
+    long expiry =
+        options.containsKey("expiry") ? TimeResolver.resolveExpression(options.get("expiry")) : 0L;
+    int threads =
+        options.containsKey("threads")
+            ? parseThreads(options.get("threads"))
+            : Runtime.getRuntime().availableProcessors();
+    if (passwordEncoding == null || engine == null || expiry < 0L || threads <= 0) {
+      System.err.println(USAGE);
+      return 2;
+    }
+    Inject.PolicyConfiguration policyConfiguration =
+        new Inject.PolicyConfiguration()
+            .withUsername(options.get("username"))
+            .withPassword(options.get("password"))
+            .withPasswordEncoding(passwordEncoding)
+            .withNodeId(options.get("node-id"));
+    if (expiry > 0L) {
+      policyConfiguration.withExpiresIn((int) (expiry / 1000L));
+    }
+
+    Path input = Paths.get(options.get("input"));
+    Path output = Paths.get(options.get("output"));
+    BatchInject batch = new BatchInject(policyConfiguration, engine, threads);
+    long start = System.nanoTime();
+    try {
+      if (Files.isDirectory(input)) {
+        batch.injectDirectory(input, output);
+      } else {
+        batch.injectJsonLines(input, output);
+      }
+    } finally {
+      batch.pool.shutdown();
+    }
+    batch.report(System.nanoTime() - start);
+    return (batch.failures == 0) ? 0 : 1;
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i += 2) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        return null;
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    return options;
+  }
+
+  /* Returns null if the value names no constant. */
+  private static <E extends Enum<E>> E parseEnum(Class<E> type, String value) {
+    try {
+      return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /* Returns 0 if the value is not a number. */
+  private static int parseThreads(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private void injectDirectory(Path inputDir, Path outputDir) throws Exception {
+    Deque<ForkJoinTask<Long>> inFlight = new ArrayDeque<ForkJoinTask<Long>>();
+    try (Stream<Path> paths = Files.walk(inputDir)) {
+      Iterator<Path> sources = paths.filter(Files::isRegularFile).iterator();
+      while (sources.hasNext()) {
+        Path source = sources.next();
+        Path target = outputDir.resolve(inputDir.relativize(source).toString());
+        if (inFlight.size() == maxInFlight) {
+          count(inFlight.removeFirst().join());
+        }
+        inFlight.addLast(pool.submit(() -> injectFile(source, target)));
+      }
+    }
+    while (!inFlight.isEmpty()) {
+      count(inFlight.removeFirst().join());
+    }
+  }
+
+  /* Returns the size of the source, or -1 if the injection failed. */
+  private long injectFile(Path source, Path target) {
+    try {
+      Files.createDirectories(target.toAbsolutePath().getParent());
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+          OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+        if (engine == Inject.Engine.STAX) {
+          // file to file, without holding either one in memory
+          injector.injectTokenStreaming(XmlUtils.newEventReader(in), policyConfiguration, out);
+        } else {
+          ExposedByteArrayOutputStream result =
+              (engine == Inject.Engine.SPLICE)
+                  ? injector.injectTokenSplice(Files.readAllBytes(source), policyConfiguration)
+                  : injector.injectToken(XmlUtils.parseXml(in), policyConfiguration);
+          out.write(result.getBuffer(), 0, result.size());
+        }
+      }
+      return Files.size(source);
+    } catch (Exception e) {
+      System.err.println(source + ": " + e);
+      try {
+        // do not leave a truncated result behind
+        Files.deleteIfExists(target);
+      } catch (IOException deleteFailed) {
+        System.err.println(target + ": " + deleteFailed);
+      }
+      return -1L;
+    }
+  }
+
+  private static final class Line {
+    final String text; // null if the injection failed
+    final long length; // of the envelope, in UTF-8
+
+    Line(String text, long length) {
+      this.text = text;
+      this.length = length;
+    }
+  }
+
+  /*
+   * The main thread reads and writes the lines in order; the pool does the
+   * injection. There is one output line for each envelope, in the same order,
+   * with null for an envelope that failed. Blank input lines are skipped.
+   */
+  private void injectJsonLines(Path input, Path output) throws Exception {
+    Deque<ForkJoinTask<Line>> inFlight = new ArrayDeque<ForkJoinTask<Line>>();
+    try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        if (inFlight.size() == maxInFlight) {
+          writeLine(inFlight.removeFirst().join(), writer);
+        }
+        String json = line;
+        int n = lineNumber;
+        inFlight.addLast(pool.submit(() -> injectJsonLine(json, n)));
+      }
+      while (!inFlight.isEmpty()) {
+        writeLine(inFlight.removeFirst().join(), writer);
+      }
+    }
+  }
+
+  private Line injectJsonLine(String json, int lineNumber) {
+    try {
+      String envelope = JsonStrings.decode(json);
+      ExposedByteArrayOutputStream result =
+          (engine == Inject.Engine.STAX)
+              ? injector.injectTokenStreaming(
+                  XmlUtils.newEventReader(envelope), policyConfiguration)
+              : (engine == Inject.Engine.SPLICE)
+                  ? injector.injectTokenSplice(
+                      envelope.getBytes(StandardCharsets.UTF_8), policyConfiguration)
+                  : injector.injectToken(XmlUtils.parseXml(envelope), policyConfiguration);
+      return new Line(JsonStrings.encode(result.toUtf8String()), utf8Length(envelope));
+    } catch (Exception e) {
+      System.err.println("line " + lineNumber + ": " + e);
+      return new Line(null, -1L);
+    }
+  }
+
+  private void writeLine(Line line, BufferedWriter writer) throws Exception {
+    count(line.length);
+    // a JSON null keeps the output lines in step with the input lines
+    writer.write((line.text != null) ? line.text : "null");
+    writer.newLine();
+  }
+
+  /* The length of the string in UTF-8, as directory mode counts the bytes of each file. */
+  private static long utf8Length(String s) {
+    long length = 0L;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private void count(long length) {
+    envelopes++;
+    if (length < 0) {
+      failures++;
+    } else {
+      bytes += length;
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    double seconds = Math.max(elapsedNanos, 1L) / 1e9;
+    double megabytes = bytes / (1024.0 * 1024.0);
+    System.err.println(
+        String.format(
+            Locale.ROOT,
+            "%d envelopes, %d failed, %.1f MB in %.3f s: %.0f envelopes/s, %.1f MB/s",
+            envelopes,
+            failures,
+            megabytes,
+            seconds,
+            (envelopes - failures) / seconds,
+            megabytes / seconds));
+  }
+
+  /* Just enough JSON for one string value per line. */
+  static final class JsonStrings {
+    private JsonStrings() {}
+
+    static String decode(String json) {
+      String s = json.trim();
+      if (s.length() < 2 || s.charAt(0) != '"' || s.charAt(s.length() - 1) != '"') {
+        throw new IllegalArgumentException("not a JSON string");
+      }
+      StringBuilder sb = new StringBuilder(s.length());
+      for (int i = 1; i < s.length() - 1; i++) {
+        char c = s.charAt(i);
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        if (++i == s.length() - 1) {
+          throw new IllegalArgumentException("unterminated escape");
+        }
+        char e = s.charAt(i);
+        switch (e) {
+          case '"':
+          case '\\':
+          case '/':
+            sb.append(e);
+            break;
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            if (i + 4 >= s.length() - 1) {
+              throw new IllegalArgumentException("truncated unicode escape");
+            }
+            sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+            i += 4;
+            break;
+          default:
+            throw new IllegalArgumentException("invalid escape \\" + e);
+        }
+      }
+      return sb.toString();
+    }
+
+    static String encode(String s) {
+      StringBuilder sb = new StringBuilder(s.length() + 16);
+      sb.append('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        switch (c) {
+          case '"':
+            sb.append("\\\"");
+            break;
+          case '\\':
+            sb.append("\\\\");
+            break;
+          case '\n':
+            sb.append("\\n");
+            break;
+          case '\r':
+            sb.append("\\r");
+            break;
+          case '\t':
+            sb.append("\\t");
+            break;
+          default:
+            if (c < 0x20) {
+              sb.append(String.format("\\u%04x", (int) c));
+            } else {
+              sb.append(c);
+            }
+        }
+      }
+      return sb.append('"').toString();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.NonceReplayCache;
+import com.google.apigee.util.TimeResolver;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rejects a nonce that has been seen before, within a time window, and otherwise records it. Use
+ * it after {@link Verify}, with the nonce property set to {wssec_nonce}, and optionally the created
+ * property set to {wssec_created}, to key on the pair. A Created time outside the window, allowing
+ * for clock skew, is rejected, since the cache may already have forgotten that token. Policies with
+ * the same window, clock-skew and max-entries share one {@link NonceReplayCache}.
+ */
+public class CheckNonce extends WssecUsernameTokenCalloutBase implements Execution {
+  private static final long DEFAULT_WINDOW_MS = 5L * 60 * 1000;
+  private static final long DEFAULT_CLOCK_SKEW_MS = 60L * 1000;
+  private static final int DEFAULT_MAX_ENTRIES = 1000000;
+
+  private static final ConcurrentMap<String, NonceReplayCache> caches =
+      new ConcurrentHashMap<String, NonceReplayCache>();
+
+  public CheckNonce(Map properties) {
+    super(properties);
+  }
+
+  private static Long parseDuration(String expression) {
+    Long milliseconds = TimeResolver.resolveExpression(expression.trim());
+    return (milliseconds <= 0L) ? null : milliseconds;
+  }
+
+  private static Integer parseMaxEntries(String value) {
+    try {
+      int n = Integer.parseInt(value.trim());
+      return (n <= 0) ? null : n;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private long getDuration(String name, MessageContext msgCtxt, long defaultValue) {
+    Long milliseconds =
+        getParsedOptionalProperty(name, msgCtxt, CheckNonce::parseDuration, defaultValue);
+    if (milliseconds == null) {
+      throw new IllegalStateException(name + " is not a valid time span");
+    }
+    return milliseconds;
+  }
+
+  /*
+   * A token with a Created time older than the window may have been recorded
+   * and then forgotten, so it cannot be checked; reject it.
+   */
+  private static void checkCreated(String created, long window, long skew) {
+    long t;
+    try {
+      t = OffsetDateTime.parse(created.trim()).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw new IllegalStateException("invalid Created time");
+    }
+    long now = System.currentTimeMillis();
+    if (t > now + skew) {
+      throw new IllegalStateException("Created time is in the future");
+    }
+    if (t < now - window) {
+      throw new IllegalStateException("Created time is too old");
+    }
+  }
+
+  /*
+   * A Created time up to the skew ahead stays acceptable until the window
+   * has passed from it, so the cache remembers for the window plus the skew.
+   */
+  private NonceReplayCache getCache(long window, long skew, MessageContext msgCtxt) {
+    Integer maxEntries =
+        getParsedOptionalProperty(
+            "max-entries", msgCtxt, CheckNonce::parseMaxEntries, DEFAULT_MAX_ENTRIES);
+    if (maxEntries == null) {
+      throw new IllegalStateException("max-entries must be a positive integer");
+    }
+    String key = (window + skew) + "/" + maxEntries;
+    NonceReplayCache cache = caches.get(key);
+    if (cache == null) {
+      cache = new NonceReplayCache(window + skew, maxEntries);
+      NonceReplayCache existing = caches.putIfAbsent(key, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    return cache;
+  }
+
+  public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    try {
+      String nonce = getSimpleRequiredProperty("nonce", msgCtxt);
+      String created = getSimpleOptionalProperty("created", msgCtxt);
+      long window = getDuration("window", msgCtxt, DEFAULT_WINDOW_MS);
+      long skew = getDuration("clock-skew", msgCtxt, DEFAULT_CLOCK_SKEW_MS);
+      if (created != null) {
+        checkCreated(created, window, skew);
+      }
+      NonceReplayCache.Result result =
+          getCache(window, skew, msgCtxt).checkAndRecord(nonce, created);
+      boolean replay = result == NonceReplayCache.Result.REPLAY;
+      msgCtxt.setVariable(varName("nonce_replay"), String.valueOf(replay));
+      if (replay) {
+        throw new IllegalStateException("the nonce has been used before");
+      }
+      if (result == NonceReplayCache.Result.FULL) {
+        // fail closed: a nonce that cannot be recorded cannot be checked later
+        throw new IllegalStateException("the nonce cache is full");
+      }
+      return ExecutionResult.SUCCESS;
+    } catch (IllegalStateException exc1) {
+      setExceptionVariables(exc1, msgCtxt);
+      return ExecutionResult.ABORT;
+    } catch (Exception e) {
+      if (getDebug()) {
+        String stacktrace = getStackTraceAsString(e);
+        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
+      }
+      setExceptionVariables(e, msgCtxt);
+      return ExecutionResult.ABORT;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP content codings that the callouts can read and write: gzip and deflate. Both directions
+ * are streams, so the decompressed message is never held in memory as a whole unless the engine
+ * itself needs it.
+ */
+enum ContentCoding {
+  GZIP,
+  DEFLATE;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /* Returns null for no Content-Encoding, or identity. */
+  static ContentCoding forHeader(String contentEncoding) {
+    if (contentEncoding == null) {
+      return null;
+    }
+    String coding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+    if (coding.isEmpty() || coding.equals("identity")) {
+      return null;
+    }
+    if (coding.equals("gzip") || coding.equals("x-gzip")) {
+      return GZIP;
+    }
+    if (coding.equals("deflate")) {
+      return DEFLATE;
+    }
+    throw new IllegalStateException("unsupported Content-Encoding: " + contentEncoding.trim());
+  }
+
+  InputStream decode(InputStream in) throws IOException {
+    if (this == GZIP) {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    // deflate is meant to be zlib-wrapped (RFC 9110), but some clients send a
+    // raw deflate stream; tell them apart from the zlib header.
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    byte[] header = new byte[2];
+    int n = 0;
+    int count;
+    while (n < 2 && (count = pushback.read(header, n, 2 - n)) > 0) {
+      n += count;
+    }
+    pushback.unread(header, 0, n);
+    int cmf = header[0] & 0xff;
+    int flg = header[1] & 0xff;
+    boolean zlib = n == 2 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    Inflater inflater = new Inflater(!zlib);
+    return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inflater.end();
+      }
+    };
+  }
+
+  /* The caller must close the result, to write the trailer. deflate is written zlib-wrapped. */
+  OutputStream encode(OutputStream out) throws IOException {
+    if (this == GZIP) {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+    Deflater deflater = new Deflater();
+    return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        deflater.end();
+      }
+    };
+  }
+}
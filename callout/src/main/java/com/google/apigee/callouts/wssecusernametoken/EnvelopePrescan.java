@@ -0,0 +1,181 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.xml.Namespaces;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rejects content that is plainly not a SOAP message, eg JSON or HTML, by looking at no more than
+ * the first {@link #LENGTH} characters: the prolog, the name of the root element, and its
+ * namespace. It throws the same IllegalStateException as the full parse would. Anything it cannot
+ * decide within that prefix, eg a long Envelope start tag, a DOCTYPE with an internal subset, or
+ * UTF-16 content, is left to the parser.
+ */
+final class EnvelopePrescan {
+  static final int LENGTH = 512;
+
+  private EnvelopePrescan() {}
+
+  static void check(String content) {
+    int start = (!content.isEmpty() && content.charAt(0) == '\uFEFF') ? 1 : 0;
+    scan(content.substring(start, Math.min(content.length(), start + LENGTH)));
+  }
+
+  static void check(byte[] content) {
+    check(content, content.length);
+  }
+
+  static void check(byte[] content, int length) {
+    if (length >= 2 && (content[0] == 0 || content[1] == 0 || (content[0] & 0xfe) == 0xfe)) {
+      return; // UTF-16 or UTF-32
+    }
+    int start =
+        (length >= 3
+                && (content[0] & 0xff) == 0xEF
+                && (content[1] & 0xff) == 0xBB
+                && (content[2] & 0xff) == 0xBF)
+            ? 3
+            : 0;
+    // Only ASCII matters here; other bytes map to some other char, and do not match.
+    scan(
+        new String(
+            content, start, Math.min(length - start, LENGTH), StandardCharsets.ISO_8859_1));
+  }
+
+  /* Checks the start of the stream, and returns a stream positioned at the start. */
+  static InputStream check(InputStream in) throws IOException {
+    InputStream marked = in.markSupported() ? in : new BufferedInputStream(in);
+    marked.mark(LENGTH + 3);
+    byte[] prefix = new byte[LENGTH + 3];
+    int n = 0;
+    int count;
+    while (n < prefix.length && (count = marked.read(prefix, n, prefix.length - n)) > 0) {
+      n += count;
+    }
+    marked.reset();
+    check(prefix, n);
+    return marked;
+  }
+
+  private static void scan(String s) {
+    int len = s.length();
+    int p = skipWhitespace(s, 0);
+    if (p == len) {
+      return;
+    }
+    if (s.charAt(p) != '<') {
+      throw new IllegalStateException("Not a SOAP Envelope, the content is not XML.");
+    }
+
+    // the prolog: XML declaration, processing instructions, comments, DOCTYPE
+    while (true) {
+      int end;
+      if (s.startsWith("<?", p)) {
+        end = s.indexOf("?>", p + 2);
+        if (end < 0) return;
+        p = skipWhitespace(s, end + 2);
+      } else if (s.startsWith("<!--", p)) {
+        end = s.indexOf("-->", p + 4);
+        if (end < 0) return;
+        p = skipWhitespace(s, end + 3);
+      } else if (s.startsWith("<!DOCTYPE", p)) {
+        end = s.indexOf('>', p);
+        int subset = s.indexOf('[', p);
+        if (end < 0 || (subset >= 0 && subset < end)) return;
+        p = skipWhitespace(s, end + 1);
+      } else if (s.startsWith("<!", p)) {
+        return;
+      } else {
+        break;
+      }
+      if (p == len) {
+        return;
+      }
+      if (s.charAt(p) != '<') {
+        throw new IllegalStateException("Not a SOAP Envelope, the content is not XML.");
+      }
+    }
+
+    // the root element
+    int nameEnd = p + 1;
+    while (nameEnd < len && !isDelimiter(s.charAt(nameEnd))) nameEnd++;
+    if (nameEnd == len) {
+      return;
+    }
+    String qname = s.substring(p + 1, nameEnd);
+    int colon = qname.indexOf(':');
+    if (!"Envelope".equals(qname.substring(colon + 1))) {
+      throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
+    }
+    String xmlns = (colon < 0) ? "xmlns" : "xmlns:" + qname.substring(0, colon);
+
+    // its namespace, from the attributes of the start tag
+    p = nameEnd;
+    while (true) {
+      p = skipWhitespace(s, p);
+      if (p == len) {
+        return;
+      }
+      char c = s.charAt(p);
+      if (c == '>' || c == '/') {
+        throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
+      }
+      int nameStart = p;
+      while (p < len && !isDelimiter(s.charAt(p)) && s.charAt(p) != '=') p++;
+      String name = s.substring(nameStart, p);
+      p = skipWhitespace(s, p);
+      if (p == len || s.charAt(p) != '=') {
+        return;
+      }
+      p = skipWhitespace(s, p + 1);
+      if (p == len || (s.charAt(p) != '"' && s.charAt(p) != '\'')) {
+        return;
+      }
+      int valueEnd = s.indexOf(s.charAt(p), p + 1);
+      if (valueEnd < 0) {
+        return;
+      }
+      if (name.equals(xmlns)) {
+        String namespace = s.substring(p + 1, valueEnd);
+        if (namespace.indexOf('&') >= 0) {
+          return; // a character reference; leave it to the parser
+        }
+        if (!Namespaces.soapNamespaces.contains(namespace)) {
+          throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
+        }
+        return;
+      }
+      p = valueEnd + 1;
+    }
+  }
+
+  private static int skipWhitespace(String s, int p) {
+    while (p < s.length() && isWhitespace(s.charAt(p))) p++;
+    return p;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private static boolean isDelimiter(char c) {
+    return isWhitespace(c) || c == '>' || c == '/';
+  }
+}
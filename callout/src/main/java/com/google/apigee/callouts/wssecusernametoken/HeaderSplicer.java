@@ -0,0 +1,369 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.XmlEncoding;
+import com.google.apigee.xml.Namespaces;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splices the WS-Security header into the raw bytes of a SOAP message, in UTF-8 or in a single byte
+ * encoding such as ISO-8859-1. The scan reads only the prolog, the Envelope start tag, and the
+ * soap:Header if there is one; the soap:Body is copied as-is, and is never parsed or decoded.
+ * Anything unusual in the scanned prefix (comments, CDATA, a DOCTYPE, a declaration of another
+ * encoding, an existing Security element) causes {@link #scan(byte[], XmlEncoding)} to return
+ * null, and the caller falls back to the DOM path.
+ */
+class HeaderSplicer {
+  private final byte[] content;
+  private final XmlEncoding encoding;
+  private int pos;
+
+  private int start; // first byte to copy, after any BOM
+  private int envelopeTagEnd; // offset of the '>' that closes the Envelope start tag
+  private int insertAt; // offset at which to insert the header
+  private boolean wrapInHeader; // true if there is no soap:Header
+  private final StringBuilder declarations = new StringBuilder();
+
+  private String soapns;
+  private String soapPrefix;
+  private String wssePrefix;
+  private String wsuPrefix;
+
+  private HeaderSplicer(byte[] content, XmlEncoding encoding) {
+    this.content = content;
+    this.encoding = encoding;
+  }
+
+  public static HeaderSplicer scan(byte[] content) {
+    return scan(content, XmlEncoding.UTF_8);
+  }
+
+  /* UTF-8, or a single byte encoding that agrees with ASCII, such as ISO-8859-1 */
+  public static HeaderSplicer scan(byte[] content, XmlEncoding encoding) {
+    if (!encoding.isAsciiCompatible()) {
+      return null;
+    }
+    HeaderSplicer splicer = new HeaderSplicer(content, encoding);
+    return splicer.scanPrefix() ? splicer : null;
+  }
+
+  public String getSoapPrefix() {
+    return soapPrefix;
+  }
+
+  public String getWssePrefix() {
+    return wssePrefix;
+  }
+
+  public String getWsuPrefix() {
+    return wsuPrefix;
+  }
+
+  /* true if the message has no soap:Header, in which case the rendered header must include one */
+  public boolean needsHeader() {
+    return wrapInHeader;
+  }
+
+  public byte[] splice(SecurityHeaderTemplate.Rendered header) {
+    // in another encoding, only the header itself is encoded; the message
+    // bytes are copied as they are
+    byte[] encoded = encoding.isUtf8() ? null : header.encode(encoding);
+    int headerLength = (encoded == null) ? header.length() : encoded.length;
+    byte[] decls = declarations.toString().getBytes(StandardCharsets.US_ASCII);
+    byte[] out = new byte[content.length - start + decls.length + headerLength];
+    int n = 0;
+    System.arraycopy(content, start, out, n, envelopeTagEnd - start);
+    n += envelopeTagEnd - start;
+    System.arraycopy(decls, 0, out, n, decls.length);
+    n += decls.length;
+    System.arraycopy(content, envelopeTagEnd, out, n, insertAt - envelopeTagEnd);
+    n += insertAt - envelopeTagEnd;
+    if (encoded == null) {
+      n = header.writeTo(out, n);
+    } else {
+      System.arraycopy(encoded, 0, out, n, encoded.length);
+      n += encoded.length;
+    }
+    System.arraycopy(content, insertAt, out, n, content.length - insertAt);
+    return out;
+  }
+
+  /*
+   * The result up to and including the header, for a message that continues
+   * from getTailOffset(). With a scan of only the start of a large message,
+   * the rest can then be copied from wherever it is held.
+   */
+  public byte[] spliceHead(SecurityHeaderTemplate.Rendered header) {
+    byte[] encoded = header.encode(encoding);
+    byte[] decls = declarations.toString().getBytes(StandardCharsets.US_ASCII);
+    byte[] out = new byte[insertAt - start + decls.length + encoded.length];
+    int n = 0;
+    System.arraycopy(content, start, out, n, envelopeTagEnd - start);
+    n += envelopeTagEnd - start;
+    System.arraycopy(decls, 0, out, n, decls.length);
+    n += decls.length;
+    System.arraycopy(content, envelopeTagEnd, out, n, insertAt - envelopeTagEnd);
+    n += insertAt - envelopeTagEnd;
+    System.arraycopy(encoded, 0, out, n, encoded.length);
+    return out;
+  }
+
+  public int getTailOffset() {
+    return insertAt;
+  }
+
+  /* ========================================================================= */
+  /* scanning                                                                  */
+
+  private static class StartTag {
+    int offset; // offset of the '<'
+    int end; // offset of the '>'
+    String prefix;
+    String localName;
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+  }
+
+  private boolean scanPrefix() {
+    if (content.length >= 3
+        && (content[0] & 0xff) == 0xEF
+        && (content[1] & 0xff) == 0xBB
+        && (content[2] & 0xff) == 0xBF) {
+      pos = 3;
+    }
+    start = pos;
+    if (pos >= content.length || content[pos] != '<' && !isWhitespace(content[pos])) {
+      // UTF-16 or UTF-32, with or without a BOM, or not XML at all
+      return false;
+    }
+    skipWhitespace();
+    if (startsWith("<?xml") && pos + 5 < content.length && isWhitespace(content[pos + 5])) {
+      int end = indexOf("?>", pos);
+      if (end < 0 || !isDeclarationOf(ascii(pos, end), encoding.getCharset())) {
+        return false;
+      }
+      pos = end + 2;
+      skipWhitespace();
+    }
+
+    // the Envelope
+    StartTag envelope = readStartTag();
+    if (envelope == null || !"Envelope".equals(envelope.localName)) {
+      return false;
+    }
+    Map<String, String> knownNamespaces = new HashMap<String, String>(); // uri -> prefix
+    Map<String, String> boundPrefixes = new HashMap<String, String>(); // prefix -> uri
+    for (Map.Entry<String, String> entry : envelope.attributes.entrySet()) {
+      if (entry.getKey().startsWith("xmlns:")) {
+        String prefix = entry.getKey().substring(6);
+        knownNamespaces.put(entry.getValue(), prefix);
+        boundPrefixes.put(prefix, entry.getValue());
+      }
+    }
+    soapns =
+        (envelope.prefix == null)
+            ? envelope.attributes.get("xmlns")
+            : boundPrefixes.get(envelope.prefix);
+    if (soapns == null || !Namespaces.soapNamespaces.contains(soapns)) {
+      return false;
+    }
+    envelopeTagEnd = envelope.end;
+    wsuPrefix = declarePrefix(knownNamespaces, boundPrefixes, Namespaces.WSU);
+    soapPrefix = declarePrefix(knownNamespaces, boundPrefixes, soapns);
+    wssePrefix = declarePrefix(knownNamespaces, boundPrefixes, Namespaces.WSSE);
+
+    // the first child of the Envelope: either Header or Body
+    pos = envelope.end + 1;
+    skipWhitespace();
+    StartTag child = readStartTag();
+    if (child == null || child.prefix == null || !soapns.equals(boundPrefixes.get(child.prefix))) {
+      return false;
+    }
+    for (String name : child.attributes.keySet()) {
+      if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+        return false;
+      }
+    }
+    if ("Body".equals(child.localName)) {
+      insertAt = child.offset;
+      wrapInHeader = true;
+      return true;
+    }
+    if (!"Header".equals(child.localName)) {
+      return false;
+    }
+    insertAt = child.end + 1;
+    int headerEnd = indexOf("</" + child.prefix + ":Header", insertAt);
+    if (headerEnd < 0) {
+      return false;
+    }
+    // Do not attempt to handle an existing Security element, comments, CDATA,
+    // or processing instructions. Leave those to the DOM path.
+    return indexOf("Security", insertAt, headerEnd) < 0
+        && indexOf("<!", insertAt, headerEnd) < 0
+        && indexOf("<?", insertAt, headerEnd) < 0;
+  }
+
+  /*
+   * Like Inject.declareXmlnsPrefix: use the existing prefix if there is one;
+   * otherwise declare a new one on the Envelope.
+   */
+  private String declarePrefix(
+      Map<String, String> knownNamespaces, Map<String, String> boundPrefixes, String namespaceURI) {
+    String prefix = knownNamespaces.get(namespaceURI);
+    if (prefix != null) {
+      return prefix;
+    }
+    prefix = Namespaces.newPrefix(namespaceURI, boundPrefixes::containsKey);
+    declarations.append(" xmlns:").append(prefix).append("=\"").append(namespaceURI).append('"');
+    knownNamespaces.put(namespaceURI, prefix);
+    boundPrefixes.put(prefix, namespaceURI);
+    return prefix;
+  }
+
+  private static boolean isDeclarationOf(String declaration, Charset charset) {
+    int ix = declaration.indexOf("encoding");
+    if (ix < 0) {
+      return true;
+    }
+    ix = declaration.indexOf('=', ix);
+    if (ix < 0) {
+      return false;
+    }
+    String rest = declaration.substring(ix + 1).trim();
+    if (rest.isEmpty() || (rest.charAt(0) != '"' && rest.charAt(0) != '\'')) {
+      return false;
+    }
+    int end = rest.indexOf(rest.charAt(0), 1);
+    if (end < 0) {
+      return false;
+    }
+    String encoding = rest.substring(1, end).trim().toUpperCase();
+    if (charset.equals(StandardCharsets.UTF_8)) {
+      return encoding.equals("UTF-8") || encoding.equals("UTF8") || encoding.equals("US-ASCII");
+    }
+    try {
+      return Charset.forName(encoding).equals(charset);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private StartTag readStartTag() {
+    int len = content.length;
+    if (pos + 1 >= len || content[pos] != '<') {
+      return null;
+    }
+    byte first = content[pos + 1];
+    if (first == '!' || first == '?' || first == '/' || isWhitespace(first)) {
+      return null;
+    }
+    StartTag tag = new StartTag();
+    tag.offset = pos;
+    int p = pos + 1;
+    int nameStart = p;
+    while (p < len && !isWhitespace(content[p]) && content[p] != '>' && content[p] != '/') {
+      p++;
+    }
+    if (p >= len) {
+      return null;
+    }
+    String qname = decode(nameStart, p);
+    int colon = qname.indexOf(':');
+    tag.prefix = (colon < 0) ? null : qname.substring(0, colon);
+    tag.localName = qname.substring(colon + 1);
+
+    while (true) {
+      while (p < len && isWhitespace(content[p])) p++;
+      if (p >= len || content[p] == '/') {
+        return null; // truncated, or an empty element
+      }
+      if (content[p] == '>') {
+        tag.end = p;
+        pos = p + 1;
+        return tag;
+      }
+      int attrStart = p;
+      while (p < len && !isWhitespace(content[p]) && content[p] != '=') p++;
+      String name = decode(attrStart, p);
+      while (p < len && isWhitespace(content[p])) p++;
+      if (p >= len || content[p] != '=') {
+        return null;
+      }
+      p++;
+      while (p < len && isWhitespace(content[p])) p++;
+      if (p >= len || (content[p] != '"' && content[p] != '\'')) {
+        return null;
+      }
+      byte quote = content[p++];
+      int valueStart = p;
+      while (p < len && content[p] != quote) {
+        if (content[p] == '&' || content[p] == '<') {
+          return null;
+        }
+        p++;
+      }
+      if (p >= len) {
+        return null;
+      }
+      tag.attributes.put(name, decode(valueStart, p));
+      p++;
+    }
+  }
+
+  private String decode(int from, int to) {
+    return new String(content, from, to - from, encoding.getCharset());
+  }
+
+  private String ascii(int from, int to) {
+    return new String(content, from, to - from, StandardCharsets.US_ASCII);
+  }
+
+  private void skipWhitespace() {
+    while (pos < content.length && isWhitespace(content[pos])) pos++;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  private boolean startsWith(String s) {
+    return indexOf(s, pos, pos + s.length()) == pos;
+  }
+
+  private int indexOf(String s, int from) {
+    return indexOf(s, from, content.length);
+  }
+
+  /* finds the ASCII string s within content[from, to) */
+  private int indexOf(String s, int from, int to) {
+    int n = s.length();
+    outer:
+    for (int i = from; i <= to - n; i++) {
+      for (int j = 0; j < n; j++) {
+        if (content[i + j] != s.charAt(j)) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
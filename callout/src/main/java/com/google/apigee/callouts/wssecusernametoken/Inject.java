@@ -19,36 +19,39 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.ByteBufferInputStream;
+import com.google.apigee.util.CredentialIndex;
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import com.google.apigee.util.IdGenerator;
+import com.google.apigee.util.SpillOutputStream;
+import com.google.apigee.util.StreamUtils;
 import com.google.apigee.util.TimeResolver;
-import com.google.apigee.xml.Namespaces;
-import java.io.ByteArrayOutputStream;
+import com.google.apigee.util.XmlEncoding;
+import com.google.apigee.util.XmlUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.util.Base64;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.Optional;
-import java.util.function.BiFunction;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLEventReader;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
+  private static final int DEFAULT_CREDENTIALS_TTL_SECONDS = 300;
+
+  private final TokenInjector injector = new TokenInjector();
 
   public Inject(Map properties) {
     super(properties);
+    // Read directly, like debug: the warm-up starts before any message arrives.
+    Object warmUp = properties.get("warm-up");
+    if (warmUp != null && warmUp.toString().trim().equalsIgnoreCase("true")) {
+      WarmUp.start();
+    }
   }
 
   // public static String toPrettyString(Document document, int indent) {
@@ -93,199 +96,192 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
   //   return null;
   // }
 
-  java.util.concurrent.atomic.AtomicInteger idCounter =
-      new java.util.concurrent.atomic.AtomicInteger(100);
-
-  private int nsCounter = 1;
-
-  private String declareXmlnsPrefix(
-      Element elt, Map<String, String> knownNamespaces, String namespaceURIToAdd) {
-    // search here for an existing prefix with the specified URI.
-    String prefix = knownNamespaces.get(namespaceURIToAdd);
-    if (prefix != null) {
-      return prefix;
-    }
-
-    // find the default prefix for the specified URI.
-    prefix = Namespaces.defaultPrefixes.get(namespaceURIToAdd);
-    if (prefix == null) {
-      prefix = "ns" + nsCounter++;
-    }
-
-    if (elt != null) {
-      elt.setAttributeNS(Namespaces.XMLNS, "xmlns:" + prefix, namespaceURIToAdd);
-    }
-    return prefix;
+  static class TokenValues {
+    public String encodedNonce;
+    public String createdTime;
+    public String expiresTime; // null if no Timestamp is wanted
+    public String timestampId; // null if no Timestamp is wanted
+    public String usernameTokenId;
+    public String passwordType;
+    public String passwordValue;
   }
 
-  private String randomId() {
-    return String.valueOf(idCounter.getAndIncrement());
+  private static Integer parseExpiresIn(String expiryString) {
+    Long durationInMilliseconds = TimeResolver.resolveExpression(expiryString.trim());
+    if (durationInMilliseconds < 0L) return 0;
+    return ((Long) (durationInMilliseconds / 1000L)).intValue();
   }
 
-  private static String getISOTimestamp(int offsetFromNow) {
-    ZonedDateTime zdt = ZonedDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.SECONDS);
-    if (offsetFromNow != 0) zdt = zdt.plusSeconds(offsetFromNow);
-    return zdt.format(DateTimeFormatter.ISO_INSTANT);
-    // return ZonedDateTime.ofInstant(Instant.ofEpochSecond(secondsSinceEpoch), ZoneOffset.UTC)
-    //     .format(DateTimeFormatter.ISO_INSTANT);
+  private int getExpiresIn(MessageContext msgCtxt) throws Exception {
+    return getParsedOptionalProperty("expiry", msgCtxt, Inject::parseExpiresIn, 0);
   }
 
-  private String injectToken(Document doc, PolicyConfiguration policyConfiguration)
-      throws NoSuchAlgorithmException, TransformerConfigurationException, TransformerException {
-
-    // 0. grab the Envelope and Body elements
-    Element root = doc.getDocumentElement();
-    if (!"Envelope".equals(root.getLocalName())) {
-      throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
-    }
-    String rootNs = root.getNamespaceURI();
-    if (!Namespaces.soapNamespaces.contains(rootNs)) {
-      throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
-    }
-    String soapns = rootNs;
-
-    NodeList nodes = doc.getElementsByTagNameNS(soapns, "Envelope");
-    if (nodes.getLength() != 1) {
+  /* 1048576, 512KB, 64MB, 1GB; returns null if not valid. */
+  private static Long parseSize(String sizeString) {
+    String s = sizeString.trim().toUpperCase();
+    if (s.endsWith("B")) s = s.substring(0, s.length() - 1);
+    long unit = 1L;
+    if (s.endsWith("K")) unit = 1024L;
+    else if (s.endsWith("M")) unit = 1024L * 1024L;
+    else if (s.endsWith("G")) unit = 1024L * 1024L * 1024L;
+    if (unit > 1L) s = s.substring(0, s.length() - 1).trim();
+    try {
+      long n = Long.parseLong(s);
+      return (n > 0L) ? Math.multiplyExact(n, unit) : null;
+    } catch (NumberFormatException | ArithmeticException e) {
       return null;
     }
-    Element envelope = (Element) nodes.item(0);
+  }
+
+  /* Returns 0 if messages are never to be spilled to disk. */
+  private long getSpillThreshold(MessageContext msgCtxt) {
+    Long threshold =
+        getParsedOptionalProperty("spill-threshold", msgCtxt, Inject::parseSize, 0L);
+    if (threshold != null) return threshold;
+    msgCtxt.setVariable(varName("warning"), "unrecognized spill-threshold");
+    return 0L;
+  }
 
-    nodes = envelope.getElementsByTagNameNS(soapns, "Body");
-    if (nodes.getLength() != 1) {
+  /*
+   * With credentials-file or credentials-variable, the password comes from a
+   * shared CredentialIndex, selected by the username. Returns null if neither
+   * is configured.
+   */
+  private CredentialIndex.Credential getCredential(String username, MessageContext msgCtxt)
+      throws Exception {
+    String file = getSimpleOptionalProperty("credentials-file", msgCtxt);
+    String variable = getSimpleOptionalProperty("credentials-variable", msgCtxt);
+    if (file == null && variable == null) {
       return null;
     }
-
-    Element body = (Element) nodes.item(0);
-
-    // 1. set up the map of namespaces
-    Map<String, String> knownNamespaces = Namespaces.getExistingNamespaces(envelope);
-    String wsuPrefix = declareXmlnsPrefix(envelope, knownNamespaces, Namespaces.WSU);
-    String soapPrefix = declareXmlnsPrefix(envelope, knownNamespaces, soapns);
-    String wssePrefix = declareXmlnsPrefix(envelope, knownNamespaces, Namespaces.WSSE);
-
-    BiFunction<Element, String, String> wsuIdInjector =
-        (elt, prefix) -> {
-          String id = prefix + "-" + randomId();
-          elt.setAttributeNS(Namespaces.WSU, wsuPrefix + ":Id", id);
-          elt.setIdAttributeNS(Namespaces.WSU, "Id", true);
-          return id;
-        };
-
-    // 2. create a nonce and createdTime, we'll need these later
-    Element nonce = doc.createElementNS(Namespaces.WSSE, wssePrefix + ":Nonce");
-    final byte[] nonceBytes = new byte[20];
-    SecureRandom.getInstanceStrong().nextBytes(nonceBytes);
-    String encodedNonce = Base64.getEncoder().encodeToString(nonceBytes);
-    String createdTime = getISOTimestamp(0);
-
-    // 3. create or get the soap:Header
-    Element header = null;
-    nodes = doc.getElementsByTagNameNS(soapns, "Header");
-    if (nodes.getLength() == 0) {
-      header = doc.createElementNS(soapns, soapPrefix + ":Header");
-      envelope.insertBefore(header, body);
+    int ttlSeconds =
+        getParsedOptionalProperty("credentials-ttl", msgCtxt, Inject::parseExpiresIn, 0);
+    long ttl = 1000L * ((ttlSeconds > 0) ? ttlSeconds : DEFAULT_CREDENTIALS_TTL_SECONDS);
+    CredentialIndex index;
+    if (file != null) {
+      try {
+        index =
+            CredentialIndex.getInstance(
+                "file:" + file,
+                ttl,
+                () -> new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new IllegalStateException("cannot read the credentials-file");
+      }
     } else {
-      header = (Element) nodes.item(0);
+      index =
+          CredentialIndex.getInstance(
+              "variable:" + variable,
+              ttl,
+              () -> {
+                Object content = msgCtxt.getVariable(variable);
+                if (content == null) {
+                  throw new IllegalStateException("credentials-variable resolves to null");
+                }
+                return content.toString();
+              });
     }
+    CredentialIndex.Credential credential = index.get(username);
+    if (credential == null) {
+      throw new IllegalStateException("no credentials for the username");
+    }
+    return credential;
+  }
 
-    // 4. create or get the WS-Security element within the header
-    Element wssecHeader = null;
-    nodes = header.getElementsByTagNameNS(Namespaces.WSSE, "Security");
-    if (nodes.getLength() == 0) {
-      wssecHeader = doc.createElementNS(Namespaces.WSSE, wssePrefix + ":Security");
-      wssecHeader.setAttributeNS(soapns, soapPrefix + ":mustUnderstand", "1");
-
-      if (header.getFirstChild() != null) {
-        header.insertBefore(wssecHeader, header.getFirstChild());
-      } else {
-        header.appendChild(wssecHeader);
-      }
-    } else {
-      wssecHeader = (Element) nodes.item(0);
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
     }
+  }
 
-    // 5a. optionally embed a Timestamp element under the wssecHeader element
-    if (policyConfiguration.expiresInSeconds > 0) {
-      Element timestamp = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Timestamp");
-      wsuIdInjector.apply(timestamp, "TS");
-      wssecHeader.appendChild(timestamp);
-
-      // 5b. embed a Created element into the Timestamp
-      Element timestampCreated = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Created");
-      timestampCreated.setTextContent(createdTime);
-      timestamp.appendChild(timestampCreated);
-
-      // 5c. optionally, embed an Expires element into the Timestamp
-      Element expires = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Expires");
-      expires.setTextContent(getISOTimestamp(policyConfiguration.expiresInSeconds));
-      timestamp.appendChild(expires);
+  private static InputStream encode(InputStream in, ContentCoding coding) throws IOException {
+    ExposedByteArrayOutputStream compressed = new ExposedByteArrayOutputStream();
+    try (OutputStream out = coding.encode(compressed)) {
+      copy(in, out);
     }
+    return compressed.toInputStream();
+  }
 
-    // 6. embed a UsernameToken element under the wssecHeader element
-    Element usernameToken = doc.createElementNS(Namespaces.WSSE, wssePrefix + ":UsernameToken");
-    wsuIdInjector.apply(usernameToken, "UT");
-    wssecHeader.appendChild(usernameToken);
-
-    // 7a. add the username
-    Element username = doc.createElementNS(Namespaces.WSSE, wssePrefix + ":Username");
-    username.setTextContent(policyConfiguration.username);
-    usernameToken.appendChild(username);
-
-    // 7b. add the password, digest or plain text
-    Element password = doc.createElementNS(Namespaces.WSSE, wssePrefix + ":Password");
-    if (policyConfiguration.passwordEncoding == PasswordEncoding.DIGEST) {
-      password.setAttribute("Type", Namespaces.USERNAMETOKEN_PASSWORDDIGEST);
-      String aggregate = encodedNonce + createdTime + policyConfiguration.password;
-      String passwordDigest =
-          Base64.getEncoder()
-              .encodeToString(
-                  MessageDigest.getInstance("SHA1")
-                      .digest(aggregate.getBytes(StandardCharsets.UTF_8)));
-      password.setTextContent(passwordDigest);
-    } else {
-      password.setAttribute("Type", Namespaces.USERNAMETOKEN_PASSWORDTEXT);
-      password.setTextContent(policyConfiguration.password);
+  /*
+   * Injects with a spill-threshold. STAX streams the input, and spills the
+   * output. DOM and SPLICE spool the input first; below the threshold they run
+   * as usual. Above it, the input is mapped from its file and SPLICE copies
+   * the body straight from the mapping. DOM would build the whole document on
+   * the heap, so a large message is spliced instead, or if it cannot be,
+   * streamed as for STAX.
+   */
+  private InputStream injectSpilled(
+      MessageContext msgCtxt,
+      Engine engine,
+      PolicyConfiguration policyConfiguration,
+      long threshold)
+      throws Exception {
+    InputStream in = EnvelopePrescan.check(getContentStream(msgCtxt));
+    XmlEncoding encoding = getContentEncoding(msgCtxt, in);
+    if (engine != Engine.STAX) {
+      SpillOutputStream spooled = new SpillOutputStream(threshold);
+      try {
+        copy(in, spooled);
+      } catch (Exception e) {
+        spooled.discard();
+        throw e;
+      }
+      ByteBuffer input = spooled.toByteBuffer();
+      if (engine == Engine.SPLICE || spooled.isSpilled()) {
+        InputStream result = injector.injectTokenSplice(input, encoding, policyConfiguration);
+        if (result != null) {
+          return result;
+        }
+      }
+      if (!spooled.isSpilled()) {
+        Document document =
+            XmlUtils.parseXml(new ByteBufferInputStream(input), encoding.getParserEncoding());
+        return injector.injectToken(document, policyConfiguration, encoding).toInputStream();
+      }
+      in = new ByteBufferInputStream(input);
     }
-    usernameToken.appendChild(password);
-
-    // 7c. embed a Created element under UsernameToken
-    if (policyConfiguration.passwordEncoding == PasswordEncoding.DIGEST
-        || policyConfiguration.wantCreatedTime) {
-      Element tokenCreated = doc.createElementNS(Namespaces.WSU, wsuPrefix + ":Created");
-      tokenCreated.setTextContent(createdTime);
-      usernameToken.appendChild(tokenCreated);
+    SpillOutputStream out = new SpillOutputStream(threshold);
+    try {
+      injector.injectTokenStreaming(
+          XmlUtils.newEventReader(in, encoding.getParserEncoding()),
+          policyConfiguration,
+          out,
+          encoding);
+    } catch (Exception e) {
+      out.discard();
+      throw e;
     }
+    return out.toInputStream();
+  }
 
-    // 7d. embed the Nonce
-    if (policyConfiguration.passwordEncoding == PasswordEncoding.DIGEST
-        || policyConfiguration.wantNonce) {
-      nonce.setTextContent(encodedNonce);
-      nonce.setAttribute("EncodingType", Namespaces.BASE64BINARY);
-      usernameToken.appendChild(nonce);
+  /*
+   * Returns the splicer for a multipart/related message, eg MTOM, or null. Only
+   * the message content is examined; a source variable is taken as XML.
+   */
+  private MultipartSplicer getMultipart(MessageContext msgCtxt) {
+    if (getSimpleOptionalProperty("source", msgCtxt) != null) {
+      return null;
     }
+    return MultipartSplicer.forContentType(msgCtxt.getMessage().getHeader("content-type"));
+  }
 
-    // 8. emit the resulting document
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    transformer.transform(new DOMSource(doc), new StreamResult(baos));
-    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+  private String getNodeId(MessageContext msgCtxt) throws Exception {
+    String nodeId = getSimpleOptionalProperty("node-id", msgCtxt);
+    if (nodeId != null && !IdGenerator.isValidDiscriminator(nodeId)) {
+      throw new IllegalStateException("node-id may contain only letters, digits, '-', '_' and '.'");
+    }
+    return nodeId;
   }
 
-  private int getExpiresIn(MessageContext msgCtxt) throws Exception {
-    String expiryString = getSimpleOptionalProperty("expiry", msgCtxt);
-    if (expiryString == null) return 0;
-    expiryString = expiryString.trim();
-    Long durationInMilliseconds = TimeResolver.resolveExpression(expiryString);
-    if (durationInMilliseconds < 0L) return 0;
-    return ((Long) (durationInMilliseconds / 1000L)).intValue();
+  private static Optional<Boolean> parseBoolean(String value) {
+    return Optional.of(value.trim().toLowerCase().equals("true"));
   }
 
   private Optional<Boolean> getNamedOptionalBoolean(String name, MessageContext msgCtxt)
       throws Exception {
-    String value = getSimpleOptionalProperty(name, msgCtxt);
-    if (value == null) return Optional.empty();
-    return Optional.of(value.trim().toLowerCase().equals("true"));
+    return getParsedOptionalProperty(name, msgCtxt, Inject::parseBoolean, Optional.empty());
   }
 
   private Optional<Boolean> getWantNonceOptional(MessageContext msgCtxt) throws Exception {
@@ -299,10 +295,13 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
   static class PolicyConfiguration {
     public String username; // required
     public String password; // required
+    public byte[] passwordUtf8; // optional; the password, already encoded
     public PasswordEncoding passwordEncoding;
     public int expiresInSeconds = 0; // optional
     public boolean wantNonce; // optional
     public boolean wantCreatedTime; // optional
+    public String nonceAlgorithm; // optional
+    public String nodeId; // optional
 
     public PolicyConfiguration() {
       wantNonce = false;
@@ -319,6 +318,11 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
       return this;
     }
 
+    public PolicyConfiguration withPasswordUtf8(byte[] passwordUtf8) {
+      this.passwordUtf8 = passwordUtf8;
+      return this;
+    }
+
     public PolicyConfiguration withPasswordEncoding(PasswordEncoding passwordEncoding) {
       this.passwordEncoding = passwordEncoding;
       return this;
@@ -338,27 +342,150 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
       this.wantCreatedTime = wantCreatedTime;
       return this;
     }
+
+    public PolicyConfiguration withNonceAlgorithm(String nonceAlgorithm) {
+      this.nonceAlgorithm = nonceAlgorithm;
+      return this;
+    }
+
+    public PolicyConfiguration withNodeId(String nodeId) {
+      this.nodeId = nodeId;
+      return this;
+    }
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
     try {
-      Document document = getDocument(msgCtxt);
+      Engine engine = getEngine(msgCtxt);
+      String source = getSimpleOptionalProperty("source", msgCtxt);
+      MultipartSplicer multipart = getMultipart(msgCtxt);
+      // compressed message content is written back with the same coding
+      ContentCoding coding = (source == null) ? getContentCoding(msgCtxt) : null;
+      if (coding != null && engine == Engine.SPLICE) {
+        // SPLICE needs the whole message in memory, decompressed; stream it instead
+        engine = Engine.STAX;
+      }
+      // above the spill-threshold, an uncompressed message is held in a
+      // temporary file rather than on the heap
+      long spillThreshold = getSpillThreshold(msgCtxt);
+      boolean spill =
+          spillThreshold > 0L
+              && multipart == null
+              && coding == null
+              && source == null
+              && MESSAGE_CONTENT.equals(getOutputVar(msgCtxt));
+      Document document = null;
+      XMLEventReader reader = null;
+      byte[] content = null;
+      XmlEncoding encoding = XmlEncoding.UTF_8; // of the source, and the output
+      InputStream multipartSource = null;
+      MultipartSplicer.Head multipartHead = null;
+      if (multipart != null) {
+        if (!MESSAGE_CONTENT.equals(getOutputVar(msgCtxt))) {
+          throw new IllegalStateException(
+              "a multipart message can be written only to message.content");
+        }
+        // read only as far as the end of the root part; the rest stays in the stream
+        multipartSource = getContentStream(msgCtxt);
+        multipartHead = multipart.readHead(multipartSource);
+        content = multipartHead.getRootPart();
+        EnvelopePrescan.check(content);
+        encoding =
+            XmlEncoding.detect(content, content.length, multipartHead.getRootContentType());
+      } else if (spill) {
+        // read by injectSpilled, below
+      } else {
+        Object value = (source == null) ? null : getSourceValue(msgCtxt, source);
+        if (value instanceof Document) {
+          // already parsed; inject into it as it is, whatever the engine
+          engine = Engine.DOM;
+          document = (Document) value;
+        } else if (value instanceof String) {
+          if (engine == Engine.STAX) {
+            reader = getEventReader(msgCtxt);
+          } else if (engine == Engine.SPLICE) {
+            content = getSourceBytes(msgCtxt);
+          } else {
+            document = getDocument(msgCtxt);
+          }
+        } else {
+          // the message content, or bytes or a stream from the source
+          // variable, in the encoding they are in
+          InputStream in =
+              EnvelopePrescan.check(
+                  (value == null) ? getContentStream(msgCtxt) : getSourceStream(value));
+          encoding =
+              (value == null) ? getContentEncoding(msgCtxt, in) : getSourceEncoding(value, in);
+          if (engine == Engine.STAX) {
+            reader = XmlUtils.newEventReader(in, encoding.getParserEncoding());
+          } else if (engine == Engine.SPLICE) {
+            content = (value instanceof byte[]) ? (byte[]) value : StreamUtils.readAllBytes(in);
+          } else {
+            document = XmlUtils.parseXml(in, encoding.getParserEncoding());
+          }
+        }
+      }
 
+      String username = getUsername(msgCtxt);
+      CredentialIndex.Credential credential = getCredential(username, msgCtxt);
       PolicyConfiguration policyConfiguration =
           new PolicyConfiguration()
-              .withUsername(getUsername(msgCtxt))
-              .withPassword(getPassword(msgCtxt))
+              .withUsername(username)
+              .withPassword((credential != null) ? credential.password : getPassword(msgCtxt))
+              .withPasswordUtf8((credential != null) ? credential.passwordUtf8 : null)
               .withPasswordEncoding(getPasswordEncoding(msgCtxt))
-              .withExpiresIn(getExpiresIn(msgCtxt));
+              .withExpiresIn(getExpiresIn(msgCtxt))
+              .withNonceAlgorithm(getSimpleOptionalProperty("nonce-algorithm", msgCtxt))
+              .withNodeId(getNodeId(msgCtxt));
 
       getWantNonceOptional(msgCtxt)
           .ifPresent(wantNonce -> policyConfiguration.withWantNonce(wantNonce));
       getWantCreatedTimeOptional(msgCtxt)
           .ifPresent(wantCreatedTime -> policyConfiguration.withWantCreatedTime(wantCreatedTime));
 
-      String resultingXmlString = injectToken(document, policyConfiguration);
+      if (spill) {
+        msgCtxt
+            .getMessage()
+            .setContent(injectSpilled(msgCtxt, engine, policyConfiguration, spillThreshold));
+        return ExecutionResult.SUCCESS;
+      }
+
+      if (multipartHead != null) {
+        ExposedByteArrayOutputStream rootPart =
+            injector.injectToken(content, engine, policyConfiguration, encoding);
+        InputStream spliced = multipartHead.replaceRootPart(rootPart, multipartSource);
+        msgCtxt.getMessage().setContent((coding == null) ? spliced : encode(spliced, coding));
+        return ExecutionResult.SUCCESS;
+      }
+
       String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, resultingXmlString);
+      if (coding != null && MESSAGE_CONTENT.equals(outputVar)) {
+        // inject and recompress in one pass; only the compressed result is
+        // held in memory, along with the document for DOM
+        ExposedByteArrayOutputStream compressed = new ExposedByteArrayOutputStream();
+        try (OutputStream out = coding.encode(compressed)) {
+          if (engine == Engine.STAX) {
+            injector.injectTokenStreaming(reader, policyConfiguration, out, encoding);
+          } else {
+            injector.injectToken(document, policyConfiguration, out, encoding);
+          }
+        }
+        msgCtxt.getMessage().setContent(compressed.toInputStream());
+        return ExecutionResult.SUCCESS;
+      }
+
+      ExposedByteArrayOutputStream result =
+          (engine == Engine.STAX)
+              ? injector.injectTokenStreaming(reader, policyConfiguration, encoding)
+              : (engine == Engine.SPLICE)
+                  ? injector.injectTokenSplice(content, encoding, policyConfiguration)
+                  : injector.injectToken(document, policyConfiguration, encoding);
+      if (MESSAGE_CONTENT.equals(outputVar)) {
+        // hand the buffer to the message as-is; no String, and no copy
+        msgCtxt.getMessage().setContent(result.toInputStream());
+      } else {
+        msgCtxt.setVariable(outputVar, result.toString(encoding.getOutputCharset()));
+      }
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
       setExceptionVariables(exc1, msgCtxt);
@@ -0,0 +1,286 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the root SOAP part of a multipart/related message, eg MTOM/XOP or SOAP with attachments,
+ * so that the header can be injected into that part alone. The message is read only as far as the
+ * end of the root part. The attachments after it are never read into memory; the result is a
+ * stream of the rewritten head of the message followed by the rest of the original stream.
+ *
+ * <p>Parts that precede the root part are held in memory along with it. In practice the root part
+ * is nearly always the first.
+ */
+class MultipartSplicer {
+  private static final int CHUNK = 8192;
+  private static final int MAX_HEAD = 32 * 1024 * 1024;
+
+  private final byte[] delimiter; // CRLF "--" boundary
+  private final String start; // the Content-ID of the root part, or null for the first part
+
+  private MultipartSplicer(String boundary, String start) {
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    this.start = (start == null) ? null : stripAngleBrackets(start);
+  }
+
+  /* Returns null unless the content type is multipart/related with a boundary. */
+  static MultipartSplicer forContentType(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    String[] fields = splitParameters(contentType);
+    if (!fields[0].trim().equalsIgnoreCase("multipart/related")) {
+      return null;
+    }
+    String boundary = null;
+    String start = null;
+    for (int i = 1; i < fields.length; i++) {
+      int eq = fields[i].indexOf('=');
+      if (eq < 0) continue;
+      String name = fields[i].substring(0, eq).trim().toLowerCase(Locale.ROOT);
+      String value = unquote(fields[i].substring(eq + 1).trim());
+      if (name.equals("boundary")) {
+        boundary = value;
+      } else if (name.equals("start")) {
+        start = value;
+      }
+    }
+    if (boundary == null || boundary.isEmpty()) {
+      throw new IllegalStateException("multipart content type has no boundary");
+    }
+    return new MultipartSplicer(boundary, start);
+  }
+
+  /** The head of the message, read up to and including the end of the root part. */
+  class Head {
+    private final byte[] buffer;
+    private final int length;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private final String rootContentType;
+
+    private Head(byte[] buffer, int length, int bodyStart, int bodyEnd, String rootContentType) {
+      this.buffer = buffer;
+      this.length = length;
+      this.bodyStart = bodyStart;
+      this.bodyEnd = bodyEnd;
+      this.rootContentType = rootContentType;
+    }
+
+    public byte[] getRootPart() {
+      return Arrays.copyOfRange(buffer, bodyStart, bodyEnd);
+    }
+
+    /* The Content-Type header of the root part, or null if it has none. */
+    public String getRootContentType() {
+      return rootContentType;
+    }
+
+    /* The message with the root part replaced, followed by the unread rest of the source. */
+    public InputStream replaceRootPart(ExposedByteArrayOutputStream rootPart, InputStream rest) {
+      ExposedByteArrayOutputStream head =
+          new ExposedByteArrayOutputStream(length - (bodyEnd - bodyStart) + rootPart.size());
+      head.write(buffer, 0, bodyStart);
+      head.write(rootPart.getBuffer(), 0, rootPart.size());
+      head.write(buffer, bodyEnd, length - bodyEnd);
+      return new SequenceInputStream(head.toInputStream(), rest);
+    }
+  }
+
+  /*
+   * Reads the source up to the end of the root part. The source is left
+   * positioned after the bytes in the Head, for replaceRootPart.
+   */
+  Head readHead(InputStream in) throws IOException {
+    Reader reader = new Reader(in);
+    int p;
+    if (reader.startsWith(delimiter, 2, 0)) {
+      // the first delimiter, at the very start, without the CRLF
+      p = delimiter.length - 2;
+    } else {
+      p = reader.indexOf(delimiter, 0);
+      if (p < 0) {
+        throw new IllegalStateException("multipart message has no parts");
+      }
+      p += delimiter.length;
+    }
+    boolean first = true;
+    while (true) {
+      // the rest of the delimiter line: "--" for the close delimiter, or padding
+      int lineEnd = reader.indexOf(CRLF, p);
+      if (lineEnd < 0 || reader.startsWith(DASHES, 0, p)) {
+        throw new IllegalStateException("multipart message has no root part");
+      }
+      int headersEnd = reader.indexOf(CRLFCRLF, lineEnd);
+      if (headersEnd < 0) {
+        throw new IllegalStateException("multipart part has no end of headers");
+      }
+      String headers = reader.ascii(lineEnd + 2, headersEnd + 2);
+      int bodyStart = headersEnd + 4;
+      int bodyEnd = reader.indexOf(delimiter, bodyStart);
+      if (bodyEnd < 0) {
+        throw new IllegalStateException("multipart part has no closing delimiter");
+      }
+      if (isRoot(headers, first)) {
+        String encoding = headerValue(headers, "content-transfer-encoding");
+        if (encoding != null
+            && !encoding.equalsIgnoreCase("binary")
+            && !encoding.equalsIgnoreCase("8bit")
+            && !encoding.equalsIgnoreCase("7bit")) {
+          throw new IllegalStateException(
+              "unsupported Content-Transfer-Encoding for the root part: " + encoding);
+        }
+        return new Head(
+            reader.buffer,
+            reader.length,
+            bodyStart,
+            bodyEnd,
+            headerValue(headers, "content-type"));
+      }
+      first = false;
+      p = bodyEnd + delimiter.length;
+    }
+  }
+
+  private boolean isRoot(String headers, boolean first) {
+    if (start == null) {
+      return first;
+    }
+    String contentId = headerValue(headers, "content-id");
+    return contentId != null && stripAngleBrackets(contentId).equals(start);
+  }
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+  private static final byte[] DASHES = {'-', '-'};
+
+  /* Reads the source in chunks, as far as each search requires. */
+  private static class Reader {
+    private final InputStream in;
+    byte[] buffer = new byte[CHUNK];
+    int length;
+    private boolean eof;
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    private boolean fill() throws IOException {
+      if (eof) {
+        return false;
+      }
+      if (length == buffer.length) {
+        if (buffer.length >= MAX_HEAD) {
+          throw new IllegalStateException("multipart root part is too large");
+        }
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      int n = in.read(buffer, length, buffer.length - length);
+      if (n < 0) {
+        eof = true;
+        return false;
+      }
+      length += n;
+      return true;
+    }
+
+    /* true if target, less its first skip bytes, is at the offset */
+    boolean startsWith(byte[] target, int skip, int offset) throws IOException {
+      int n = target.length - skip;
+      while (length < offset + n) {
+        if (!fill()) return false;
+      }
+      for (int i = 0; i < n; i++) {
+        if (buffer[offset + i] != target[skip + i]) return false;
+      }
+      return true;
+    }
+
+    int indexOf(byte[] target, int from) throws IOException {
+      int i = from;
+      while (true) {
+        outer:
+        for (; i <= length - target.length; i++) {
+          for (int j = 0; j < target.length; j++) {
+            if (buffer[i + j] != target[j]) {
+              continue outer;
+            }
+          }
+          return i;
+        }
+        if (!fill()) {
+          return -1;
+        }
+      }
+    }
+
+    String ascii(int from, int to) {
+      return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /* Returns the value of the named header, from CRLF-separated header lines, or null. */
+  private static String headerValue(String headers, String name) {
+    for (String line : headers.split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+        return line.substring(colon + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  private static String stripAngleBrackets(String s) {
+    s = s.trim();
+    return (s.length() >= 2 && s.charAt(0) == '<' && s.charAt(s.length() - 1) == '>')
+        ? s.substring(1, s.length() - 1)
+        : s;
+  }
+
+  private static String unquote(String s) {
+    return (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+        ? s.substring(1, s.length() - 1)
+        : s;
+  }
+
+  /* Splits on semicolons that are not within quotes. */
+  private static String[] splitParameters(String contentType) {
+    List<String> fields = new ArrayList<String>();
+    boolean quoted = false;
+    int from = 0;
+    for (int i = 0; i < contentType.length(); i++) {
+      char c = contentType.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ';' && !quoted) {
+        fields.add(contentType.substring(from, i));
+        from = i + 1;
+      }
+    }
+    fields.add(contentType.substring(from));
+    return fields.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Computes the UsernameToken PasswordDigest, Base64(SHA-1(nonce + created + password)). Each
+ * thread has its own MessageDigest and working buffers. The inputs go into the digest as bytes,
+ * with no concatenated String in between. A password is encoded to UTF-8 on each call, unless the
+ * caller supplies the bytes; nothing about the password outlives the call.
+ */
+class PasswordDigest {
+  private static final int SHA1_LENGTH = 20;
+  private static final int ENCODED_LENGTH = 28; // 4 * ceil(20 / 3)
+
+  private static final ThreadLocal<PasswordDigest> instances =
+      ThreadLocal.withInitial(PasswordDigest::newInstance);
+
+  private final MessageDigest sha1;
+  private final byte[] digest = new byte[SHA1_LENGTH];
+  private final byte[] encoded = new byte[ENCODED_LENGTH];
+  private byte[] scratch = new byte[64];
+
+  private PasswordDigest(MessageDigest sha1) {
+    this.sha1 = sha1;
+  }
+
+  private static PasswordDigest newInstance() {
+    try {
+      return new PasswordDigest(MessageDigest.getInstance("SHA1"));
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /* The digest as Inject computes it, over the Base64 text of the nonce. */
+  static String compute(String encodedNonce, String createdTime, String password) {
+    PasswordDigest instance = instances.get();
+    instance.sha1.reset();
+    instance.updateAscii(encodedNonce);
+    return instance.finish(createdTime, password.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /* As above, for a password already encoded in UTF-8, eg from a CredentialIndex. */
+  static String compute(String encodedNonce, String createdTime, byte[] passwordUtf8) {
+    PasswordDigest instance = instances.get();
+    instance.sha1.reset();
+    instance.updateAscii(encodedNonce);
+    return instance.finish(createdTime, passwordUtf8);
+  }
+
+  /* The digest as the OASIS UsernameToken profile defines it, over the decoded nonce. */
+  static String compute(byte[] nonce, String createdTime, String password) {
+    PasswordDigest instance = instances.get();
+    instance.sha1.reset();
+    instance.sha1.update(nonce);
+    return instance.finish(createdTime, password.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String finish(String createdTime, byte[] passwordBytes) {
+    updateAscii(createdTime);
+    sha1.update(passwordBytes);
+    try {
+      sha1.digest(digest, 0, SHA1_LENGTH);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    int n = Base64.getEncoder().encode(digest, encoded);
+    return new String(encoded, 0, n, StandardCharsets.ISO_8859_1);
+  }
+
+  /* The nonce is Base64 and the timestamp is ISO-8601; both are ASCII. */
+  private void updateAscii(String s) {
+    int length = s.length();
+    if (scratch.length < length) {
+      scratch = new byte[length];
+    }
+    for (int i = 0; i < length; i++) {
+      scratch[i] = (byte) s.charAt(i);
+    }
+    sha1.update(scratch, 0, length);
+  }
+}
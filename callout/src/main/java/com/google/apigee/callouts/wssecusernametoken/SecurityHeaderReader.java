@@ -0,0 +1,173 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.xml.Namespaces;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Reads the UsernameToken and Timestamp from the WS-Security header of an inbound message, in a
+ * single pass over StAX events. Reading stops at the end of the soap:Header, or at the start of
+ * the soap:Body if there is no Header, so the cost does not depend on the size of the Body.
+ */
+class SecurityHeaderReader {
+  private static final QName PASSWORD_TYPE = new QName("Type");
+  private static final QName ENCODING_TYPE = new QName("EncodingType");
+
+  /** The values found in the header; null for anything not present. */
+  static class Result {
+    public String username;
+    public String password;
+    public String passwordType;
+    public String nonce;
+    public String nonceEncodingType;
+    public String created; // in the UsernameToken
+    public String timestampCreated;
+    public String timestampExpires;
+  }
+
+  private String soapns;
+
+  public Result read(XMLEventReader reader) throws XMLStreamException {
+    try {
+      StartElement root = nextStartElement(reader);
+      checkEnvelope(root);
+      StartElement child = nextStartElement(reader);
+      Result result = new Result();
+      if (child != null && isElement(child, soapns, "Header")) {
+        readHeader(reader, result);
+      }
+      if (result.username == null) {
+        throw new IllegalStateException("No UsernameToken found.");
+      }
+      return result;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void checkEnvelope(StartElement root) {
+    if (root == null || !"Envelope".equals(root.getName().getLocalPart())) {
+      throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
+    }
+    soapns = root.getName().getNamespaceURI();
+    if (!Namespaces.soapNamespaces.contains(soapns)) {
+      throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
+    }
+  }
+
+  /* Returns the next start element at the current level, or null at the end of it. */
+  private static StartElement nextStartElement(XMLEventReader reader) throws XMLStreamException {
+    while (reader.hasNext()) {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement()) {
+        return event.asStartElement();
+      }
+      if (event.isEndElement()) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isElement(StartElement start, String namespaceURI, String localName) {
+    QName name = start.getName();
+    return localName.equals(name.getLocalPart()) && namespaceURI.equals(name.getNamespaceURI());
+  }
+
+  /* Consumes events through the end of the element that has just started. */
+  private static void skipElement(XMLEventReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement()) {
+        depth++;
+      } else if (event.isEndElement()) {
+        depth--;
+      }
+    }
+  }
+
+  private static String attributeValue(StartElement start, QName name) {
+    Attribute attribute = start.getAttributeByName(name);
+    return (attribute == null) ? null : attribute.getValue();
+  }
+
+  private void readHeader(XMLEventReader reader, Result result) throws XMLStreamException {
+    StartElement start;
+    while ((start = nextStartElement(reader)) != null) {
+      if (result.username == null && isElement(start, Namespaces.WSSE, "Security")) {
+        readSecurity(reader, result);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private void readSecurity(XMLEventReader reader, Result result) throws XMLStreamException {
+    StartElement start;
+    while ((start = nextStartElement(reader)) != null) {
+      if (result.username == null && isElement(start, Namespaces.WSSE, "UsernameToken")) {
+        readUsernameToken(reader, result);
+      } else if (result.timestampExpires == null && isElement(start, Namespaces.WSU, "Timestamp")) {
+        readTimestamp(reader, result);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private void readUsernameToken(XMLEventReader reader, Result result)
+      throws XMLStreamException {
+    String username = null;
+    StartElement start;
+    while ((start = nextStartElement(reader)) != null) {
+      if (isElement(start, Namespaces.WSSE, "Username")) {
+        username = reader.getElementText().trim();
+      } else if (isElement(start, Namespaces.WSSE, "Password")) {
+        result.passwordType = attributeValue(start, PASSWORD_TYPE);
+        result.password = reader.getElementText();
+      } else if (isElement(start, Namespaces.WSSE, "Nonce")) {
+        result.nonceEncodingType = attributeValue(start, ENCODING_TYPE);
+        result.nonce = reader.getElementText().trim();
+      } else if (isElement(start, Namespaces.WSU, "Created")) {
+        result.created = reader.getElementText().trim();
+      } else {
+        skipElement(reader);
+      }
+    }
+    // an empty Username is as good as none
+    result.username = (username == null || username.isEmpty()) ? null : username;
+  }
+
+  private void readTimestamp(XMLEventReader reader, Result result) throws XMLStreamException {
+    StartElement start;
+    while ((start = nextStartElement(reader)) != null) {
+      if (isElement(start, Namespaces.WSU, "Created")) {
+        result.timestampCreated = reader.getElementText().trim();
+      } else if (isElement(start, Namespaces.WSU, "Expires")) {
+        result.timestampExpires = reader.getElementText().trim();
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+}
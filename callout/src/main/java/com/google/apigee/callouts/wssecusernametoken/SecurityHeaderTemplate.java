@@ -0,0 +1,244 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.XmlEncoding;
+import com.google.apigee.util.XmlUtils;
+import com.google.apigee.xml.Namespaces;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The WS-Security header, pre-rendered as UTF-8 bytes, with slots for the values that change on
+ * each request: the wsu:Id values, Created, Expires, Nonce, and the username and password. The
+ * shape of the header depends only on the policy configuration and the prefixes in use, so a
+ * template is compiled once per shape and then filled for each message.
+ */
+class SecurityHeaderTemplate {
+  enum Slot {
+    TIMESTAMP_ID,
+    CREATED,
+    EXPIRES,
+    USERNAME_TOKEN_ID,
+    USERNAME,
+    PASSWORD,
+    NONCE
+  }
+
+  private final byte[][] literals; // literals[i] precedes slots[i]; one extra at the end
+  private final Slot[] slots;
+  private final int literalLength;
+
+  private SecurityHeaderTemplate(byte[][] literals, Slot[] slots) {
+    this.literals = literals;
+    this.slots = slots;
+    int n = 0;
+    for (byte[] literal : literals) n += literal.length;
+    this.literalLength = n;
+  }
+
+  static String key(
+      String soapPrefix,
+      String wssePrefix,
+      String wsuPrefix,
+      boolean wrapInHeader,
+      boolean wrapInSecurity,
+      Inject.PolicyConfiguration policyConfiguration) {
+    return soapPrefix
+        + ":"
+        + wssePrefix
+        + ":"
+        + wsuPrefix
+        + ":"
+        + wrapInHeader
+        + ":"
+        + wrapInSecurity
+        + ":"
+        + policyConfiguration.passwordEncoding
+        + ":"
+        + (policyConfiguration.expiresInSeconds > 0)
+        + ":"
+        + policyConfiguration.wantCreatedTime
+        + ":"
+        + policyConfiguration.wantNonce;
+  }
+
+  /*
+   * Compile the template. wrapInHeader adds a soap:Header around the content,
+   * for messages that have none. wrapInSecurity adds the wsse:Security element;
+   * without it the template holds only the Timestamp and UsernameToken, for
+   * insertion into an existing Security element.
+   */
+  static SecurityHeaderTemplate compile(
+      String soapPrefix,
+      String wssePrefix,
+      String wsuPrefix,
+      boolean wrapInHeader,
+      boolean wrapInSecurity,
+      Inject.PolicyConfiguration policyConfiguration) {
+    Builder b = new Builder();
+    if (wrapInHeader) {
+      b.text("<" + soapPrefix + ":Header>");
+    }
+    if (wrapInSecurity) {
+      b.text("<" + wssePrefix + ":Security " + soapPrefix + ":mustUnderstand=\"1\">");
+    }
+    if (policyConfiguration.expiresInSeconds > 0) {
+      b.text("<" + wsuPrefix + ":Timestamp " + wsuPrefix + ":Id=\"");
+      b.slot(Slot.TIMESTAMP_ID);
+      b.text("\">");
+      b.element(wsuPrefix + ":Created", null, Slot.CREATED);
+      b.element(wsuPrefix + ":Expires", null, Slot.EXPIRES);
+      b.text("</" + wsuPrefix + ":Timestamp>");
+    }
+    b.text("<" + wssePrefix + ":UsernameToken " + wsuPrefix + ":Id=\"");
+    b.slot(Slot.USERNAME_TOKEN_ID);
+    b.text("\">");
+    b.element(wssePrefix + ":Username", null, Slot.USERNAME);
+    boolean isDigest = policyConfiguration.passwordEncoding == Inject.PasswordEncoding.DIGEST;
+    String passwordType =
+        isDigest ? Namespaces.USERNAMETOKEN_PASSWORDDIGEST : Namespaces.USERNAMETOKEN_PASSWORDTEXT;
+    b.element(wssePrefix + ":Password", "Type=\"" + passwordType + "\"", Slot.PASSWORD);
+    if (isDigest || policyConfiguration.wantCreatedTime) {
+      b.element(wsuPrefix + ":Created", null, Slot.CREATED);
+    }
+    if (isDigest || policyConfiguration.wantNonce) {
+      b.element(
+          wssePrefix + ":Nonce", "EncodingType=\"" + Namespaces.BASE64BINARY + "\"", Slot.NONCE);
+    }
+    b.text("</" + wssePrefix + ":UsernameToken>");
+    if (wrapInSecurity) {
+      b.text("</" + wssePrefix + ":Security>");
+    }
+    if (wrapInHeader) {
+      b.text("</" + soapPrefix + ":Header>");
+    }
+    return b.build();
+  }
+
+  /** A template filled with the values for one request. */
+  class Rendered {
+    private final byte[][] values;
+    private final int length;
+
+    private Rendered(byte[][] values) {
+      this.values = values;
+      int n = literalLength;
+      for (byte[] value : values) n += value.length;
+      this.length = n;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public int writeTo(byte[] dest, int offset) {
+      for (int i = 0; i < slots.length; i++) {
+        System.arraycopy(literals[i], 0, dest, offset, literals[i].length);
+        offset += literals[i].length;
+        System.arraycopy(values[i], 0, dest, offset, values[i].length);
+        offset += values[i].length;
+      }
+      byte[] last = literals[slots.length];
+      System.arraycopy(last, 0, dest, offset, last.length);
+      return offset + last.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      for (int i = 0; i < slots.length; i++) {
+        out.write(literals[i]);
+        out.write(values[i]);
+      }
+      out.write(literals[slots.length]);
+    }
+
+    /* The header in the given encoding; for UTF-8, the bytes as rendered. */
+    public byte[] encode(XmlEncoding encoding) {
+      byte[] utf8 = new byte[length];
+      writeTo(utf8, 0);
+      return encoding.isUtf8() ? utf8 : encoding.encode(new String(utf8, StandardCharsets.UTF_8));
+    }
+  }
+
+  public Rendered fill(Inject.PolicyConfiguration policyConfiguration, Inject.TokenValues values) {
+    byte[][] slotValues = new byte[slots.length][];
+    for (int i = 0; i < slots.length; i++) {
+      slotValues[i] = slotValue(slots[i], policyConfiguration, values);
+    }
+    return new Rendered(slotValues);
+  }
+
+  private static byte[] slotValue(
+      Slot slot, Inject.PolicyConfiguration policyConfiguration, Inject.TokenValues values) {
+    switch (slot) {
+      case TIMESTAMP_ID:
+        return ascii(values.timestampId);
+      case CREATED:
+        return ascii(values.createdTime);
+      case EXPIRES:
+        return ascii(values.expiresTime);
+      case USERNAME_TOKEN_ID:
+        return ascii(values.usernameTokenId);
+      case USERNAME:
+        return utf8(XmlUtils.escapeText(policyConfiguration.username));
+      case PASSWORD:
+        return utf8(XmlUtils.escapeText(values.passwordValue));
+      case NONCE:
+        return ascii(values.encodedNonce);
+      default:
+        throw new IllegalStateException("unknown slot " + slot);
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static class Builder {
+    private final List<byte[]> literals = new ArrayList<byte[]>();
+    private final List<Slot> slots = new ArrayList<Slot>();
+    private final StringBuilder literal = new StringBuilder();
+
+    void text(String s) {
+      literal.append(s);
+    }
+
+    void slot(Slot slot) {
+      literals.add(utf8(literal.toString()));
+      literal.setLength(0);
+      slots.add(slot);
+    }
+
+    void element(String qname, String attribute, Slot slot) {
+      text("<" + qname + ((attribute == null) ? "" : " " + attribute) + ">");
+      slot(slot);
+      text("</" + qname + ">");
+    }
+
+    SecurityHeaderTemplate build() {
+      literals.add(utf8(literal.toString()));
+      return new SecurityHeaderTemplate(
+          literals.toArray(new byte[0][]), slots.toArray(new Slot[0]));
+    }
+  }
+}
@@ -0,0 +1,304 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.XmlEncoding;
+import com.google.apigee.util.XmlUtils;
+import com.google.apigee.xml.Namespaces;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Injects the UsernameToken by copying StAX events from the source to the output, splicing the
+ * WS-Security elements in as the soap:Header goes by. Only the content of the soap:Header is
+ * buffered; the soap:Body is streamed through, so memory use does not grow with the size of the
+ * message. The result is equivalent to the DOM path in {@link TokenInjector}.
+ */
+class StaxInjector {
+  private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+  private final Inject.PolicyConfiguration policyConfiguration;
+  private final Inject.TokenValues values;
+
+  private String soapns;
+  private String soapPrefix;
+  private String wssePrefix;
+  private String wsuPrefix;
+
+  StaxInjector(Inject.PolicyConfiguration policyConfiguration, Inject.TokenValues values) {
+    this.policyConfiguration = policyConfiguration;
+    this.values = values;
+  }
+
+  public void inject(XMLEventReader reader, OutputStream out) throws XMLStreamException {
+    inject(reader, out, XmlEncoding.UTF_8);
+  }
+
+  /* Writes in the given encoding, with a declaration if the encoding needs one. */
+  public void inject(XMLEventReader reader, OutputStream out, XmlEncoding encoding)
+      throws XMLStreamException {
+    XMLEventWriter writer = XmlUtils.newEventWriter(out, encoding.getOutputCharset());
+    try {
+      if (encoding.getDeclaredName() != null) {
+        writer.add(eventFactory.createStartDocument(encoding.getDeclaredName(), "1.0"));
+      }
+      int depth = 0;
+      boolean injected = false;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        switch (event.getEventType()) {
+          case XMLEvent.START_DOCUMENT:
+          case XMLEvent.END_DOCUMENT:
+          case XMLEvent.DTD:
+            // the DOM path omits the XML declaration; do the same here.
+            break;
+
+          case XMLEvent.START_ELEMENT:
+            depth++;
+            StartElement start = event.asStartElement();
+            if (depth == 1) {
+              writer.add(startEnvelope(start));
+            } else if (depth == 2 && !injected && isSoapElement(start, "Header")) {
+              writer.add(start);
+              copyHeader(reader, writer);
+              depth--;
+              injected = true;
+            } else if (depth == 2 && !injected && isSoapElement(start, "Body")) {
+              QName headerName = new QName(soapns, "Header", soapPrefix);
+              writer.add(eventFactory.createStartElement(headerName, null, null));
+              writeSecurity(writer);
+              writer.add(eventFactory.createEndElement(headerName, null));
+              writer.add(start);
+              injected = true;
+            } else {
+              writer.add(start);
+            }
+            break;
+
+          case XMLEvent.END_ELEMENT:
+            depth--;
+            writer.add(event);
+            break;
+
+          default:
+            writer.add(event);
+            break;
+        }
+      }
+      if (!injected) {
+        throw new IllegalStateException("Not a SOAP Envelope, missing Body.");
+      }
+      writer.flush();
+    } finally {
+      writer.close();
+      reader.close();
+    }
+  }
+
+  private boolean isSoapElement(StartElement start, String localName) {
+    QName name = start.getName();
+    return localName.equals(name.getLocalPart()) && soapns.equals(name.getNamespaceURI());
+  }
+
+  /*
+   * Check the root element, and declare the wsu and wsse prefixes on it, if
+   * necessary. This mirrors Inject.declareXmlnsPrefix.
+   */
+  private StartElement startEnvelope(StartElement root) {
+    QName name = root.getName();
+    if (!"Envelope".equals(name.getLocalPart())) {
+      throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
+    }
+    if (!Namespaces.soapNamespaces.contains(name.getNamespaceURI())) {
+      throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
+    }
+    soapns = name.getNamespaceURI();
+
+    List<Namespace> namespaces = new ArrayList<Namespace>();
+    Map<String, String> knownNamespaces = new HashMap<String, String>();
+    Set<String> boundPrefixes = new HashSet<String>();
+    for (Iterator<?> it = root.getNamespaces(); it.hasNext(); ) {
+      Namespace ns = (Namespace) it.next();
+      namespaces.add(ns);
+      if (!ns.isDefaultNamespaceDeclaration()) {
+        knownNamespaces.put(ns.getNamespaceURI(), ns.getPrefix());
+        boundPrefixes.add(ns.getPrefix());
+      }
+    }
+    wsuPrefix = declarePrefix(namespaces, knownNamespaces, boundPrefixes, Namespaces.WSU);
+    soapPrefix = declarePrefix(namespaces, knownNamespaces, boundPrefixes, soapns);
+    wssePrefix = declarePrefix(namespaces, knownNamespaces, boundPrefixes, Namespaces.WSSE);
+
+    List<Attribute> attributes = new ArrayList<Attribute>();
+    for (Iterator<?> it = root.getAttributes(); it.hasNext(); ) {
+      attributes.add((Attribute) it.next());
+    }
+    return eventFactory.createStartElement(
+        name.getPrefix(),
+        name.getNamespaceURI(),
+        name.getLocalPart(),
+        attributes.iterator(),
+        namespaces.iterator());
+  }
+
+  private static String declarePrefix(
+      List<Namespace> namespaces,
+      Map<String, String> knownNamespaces,
+      Set<String> boundPrefixes,
+      String namespaceURI) {
+    String prefix = knownNamespaces.get(namespaceURI);
+    if (prefix == null) {
+      prefix = Namespaces.newPrefix(namespaceURI, boundPrefixes::contains);
+      namespaces.add(eventFactory.createNamespace(prefix, namespaceURI));
+      knownNamespaces.put(namespaceURI, prefix);
+      boundPrefixes.add(prefix);
+    }
+    return prefix;
+  }
+
+  /*
+   * The soap:Header is small, so buffer its content in order to learn whether
+   * it already holds a wsse:Security element. If so, the token goes at the end
+   * of that element; otherwise a new Security element becomes the first child
+   * of the Header.
+   */
+  private void copyHeader(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+    List<XMLEvent> buffered = new ArrayList<XMLEvent>();
+    int depth = 1;
+    int securityDepth = -1;
+    int securityEnd = -1;
+    XMLEvent headerEnd = null;
+    while (headerEnd == null) {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement()) {
+        depth++;
+        QName name = event.asStartElement().getName();
+        if (securityDepth < 0
+            && "Security".equals(name.getLocalPart())
+            && Namespaces.WSSE.equals(name.getNamespaceURI())) {
+          securityDepth = depth;
+        }
+      } else if (event.isEndElement()) {
+        if (depth == securityDepth && securityEnd < 0) {
+          securityEnd = buffered.size();
+        }
+        depth--;
+        if (depth == 0) {
+          headerEnd = event;
+          break;
+        }
+      }
+      buffered.add(event);
+    }
+
+    if (securityEnd < 0) {
+      writeSecurity(writer);
+    }
+    for (int i = 0; i < buffered.size(); i++) {
+      if (i == securityEnd) {
+        writeTokens(writer);
+      }
+      writer.add(buffered.get(i));
+    }
+    writer.add(headerEnd);
+  }
+
+  private void writeSecurity(XMLEventWriter writer) throws XMLStreamException {
+    QName securityName = new QName(Namespaces.WSSE, "Security", wssePrefix);
+    Attribute mustUnderstand =
+        eventFactory.createAttribute(soapPrefix, soapns, "mustUnderstand", "1");
+    writer.add(
+        eventFactory.createStartElement(
+            securityName, Collections.singletonList(mustUnderstand).iterator(), null));
+    writeTokens(writer);
+    writer.add(eventFactory.createEndElement(securityName, null));
+  }
+
+  private void writeTokens(XMLEventWriter writer) throws XMLStreamException {
+    if (values.timestampId != null) {
+      QName timestamp = wsuName("Timestamp");
+      writer.add(
+          eventFactory.createStartElement(
+              timestamp, Collections.singletonList(wsuId(values.timestampId)).iterator(), null));
+      writeElement(writer, wsuName("Created"), null, values.createdTime);
+      writeElement(writer, wsuName("Expires"), null, values.expiresTime);
+      writer.add(eventFactory.createEndElement(timestamp, null));
+    }
+
+    QName usernameToken = wsseName("UsernameToken");
+    writer.add(
+        eventFactory.createStartElement(
+            usernameToken,
+            Collections.singletonList(wsuId(values.usernameTokenId)).iterator(),
+            null));
+    writeElement(writer, wsseName("Username"), null, policyConfiguration.username);
+    writeElement(
+        writer,
+        wsseName("Password"),
+        eventFactory.createAttribute("Type", values.passwordType),
+        values.passwordValue);
+    boolean isDigest = policyConfiguration.passwordEncoding == Inject.PasswordEncoding.DIGEST;
+    if (isDigest || policyConfiguration.wantCreatedTime) {
+      writeElement(writer, wsuName("Created"), null, values.createdTime);
+    }
+    if (isDigest || policyConfiguration.wantNonce) {
+      writeElement(
+          writer,
+          wsseName("Nonce"),
+          eventFactory.createAttribute("EncodingType", Namespaces.BASE64BINARY),
+          values.encodedNonce);
+    }
+    writer.add(eventFactory.createEndElement(usernameToken, null));
+  }
+
+  private static void writeElement(
+      XMLEventWriter writer, QName name, Attribute attribute, String text)
+      throws XMLStreamException {
+    Iterator<Attribute> attributes =
+        (attribute == null) ? null : Collections.singletonList(attribute).iterator();
+    writer.add(eventFactory.createStartElement(name, attributes, null));
+    writer.add(eventFactory.createCharacters(text));
+    writer.add(eventFactory.createEndElement(name, null));
+  }
+
+  private Attribute wsuId(String id) {
+    return eventFactory.createAttribute(wsuPrefix, Namespaces.WSU, "Id", id);
+  }
+
+  private QName wsuName(String localName) {
+    return new QName(Namespaces.WSU, localName, wsuPrefix);
+  }
+
+  private QName wsseName(String localName) {
+    return new QName(Namespaces.WSSE, localName, wssePrefix);
+  }
+}
@@ -0,0 +1,455 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.ByteBufferInputStream;
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import com.google.apigee.util.IdGenerator;
+import com.google.apigee.util.NonceGenerator;
+import com.google.apigee.util.TimestampCache;
+import com.google.apigee.util.XmlEncoding;
+import com.google.apigee.util.XmlUtils;
+import com.google.apigee.xml.Namespaces;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Comment;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Injects the UsernameToken into a SOAP message, with any of the three engines: DOM, StAX, or the
+ * byte splice. This class has no dependency on the Apigee runtime, so the {@link Inject} callout
+ * and the {@link BatchInject} command line tool share it. It is safe for use by multiple threads.
+ */
+final class TokenInjector {
+  private static final int NONCE_LENGTH = 20;
+  private static final int MAX_HEADER_TEMPLATES = 64;
+  private static final int SPLICE_SCAN_LIMIT = 64 * 1024;
+  private static final String PLACEHOLDER_TEXT = "wssec-header-" + UUID.randomUUID();
+  private static final byte[] PLACEHOLDER =
+      ("<!--" + PLACEHOLDER_TEXT + "-->").getBytes(StandardCharsets.UTF_8);
+
+  private final ConcurrentMap<String, SecurityHeaderTemplate> headerTemplates =
+      new ConcurrentHashMap<String, SecurityHeaderTemplate>();
+
+  private static String declareXmlnsPrefix(
+      Element elt, Map<String, String> knownNamespaces, String namespaceURIToAdd) {
+    // search here for an existing prefix with the specified URI.
+    String prefix = knownNamespaces.get(namespaceURIToAdd);
+    if (prefix != null) {
+      return prefix;
+    }
+
+    // use the default prefix for the specified URI, if it is free.
+    prefix = Namespaces.newPrefix(namespaceURIToAdd, p -> elt.hasAttributeNS(Namespaces.XMLNS, p));
+    elt.setAttributeNS(Namespaces.XMLNS, "xmlns:" + prefix, namespaceURIToAdd);
+    knownNamespaces.put(namespaceURIToAdd, prefix);
+    return prefix;
+  }
+
+  private Inject.TokenValues generateTokenValues(Inject.PolicyConfiguration policyConfiguration)
+      throws NoSuchAlgorithmException {
+    Inject.TokenValues values = new Inject.TokenValues();
+
+    // create a nonce and createdTime, we'll need these later
+    final byte[] nonceBytes =
+        NonceGenerator.getInstance(policyConfiguration.nonceAlgorithm, NONCE_LENGTH).nextNonce();
+    values.encodedNonce = Base64.getEncoder().encodeToString(nonceBytes);
+    long now = TimestampCache.currentEpochSecond();
+    values.createdTime = TimestampCache.format(now, 0);
+
+    if (policyConfiguration.expiresInSeconds > 0) {
+      values.timestampId = IdGenerator.nextId("TS", policyConfiguration.nodeId);
+      values.expiresTime = TimestampCache.format(now, policyConfiguration.expiresInSeconds);
+    }
+    values.usernameTokenId = IdGenerator.nextId("UT", policyConfiguration.nodeId);
+
+    if (policyConfiguration.passwordEncoding == Inject.PasswordEncoding.DIGEST) {
+      values.passwordType = Namespaces.USERNAMETOKEN_PASSWORDDIGEST;
+      values.passwordValue =
+          (policyConfiguration.passwordUtf8 != null)
+              ? PasswordDigest.compute(
+                  values.encodedNonce, values.createdTime, policyConfiguration.passwordUtf8)
+              : PasswordDigest.compute(
+                  values.encodedNonce, values.createdTime, policyConfiguration.password);
+    } else {
+      values.passwordType = Namespaces.USERNAMETOKEN_PASSWORDTEXT;
+      values.passwordValue = policyConfiguration.password;
+    }
+    return values;
+  }
+
+  /* Injects into a message held in memory, with the given engine. */
+  ExposedByteArrayOutputStream injectToken(
+      byte[] content, Inject.Engine engine, Inject.PolicyConfiguration policyConfiguration)
+      throws Exception {
+    return injectToken(
+        content, engine, policyConfiguration, XmlEncoding.detect(content, content.length, null));
+  }
+
+  /* The message is in the given encoding, and the result is too. */
+  ExposedByteArrayOutputStream injectToken(
+      byte[] content,
+      Inject.Engine engine,
+      Inject.PolicyConfiguration policyConfiguration,
+      XmlEncoding encoding)
+      throws Exception {
+    switch (engine) {
+      case STAX:
+        return injectTokenStreaming(
+            XmlUtils.newEventReader(
+                new ByteArrayInputStream(content), encoding.getParserEncoding()),
+            policyConfiguration,
+            encoding);
+      case SPLICE:
+        return injectTokenSplice(content, encoding, policyConfiguration);
+      default:
+        return injectToken(
+            XmlUtils.parseXml(new ByteArrayInputStream(content), encoding.getParserEncoding()),
+            policyConfiguration,
+            encoding);
+    }
+  }
+
+  ExposedByteArrayOutputStream injectToken(
+      Document doc, Inject.PolicyConfiguration policyConfiguration)
+      throws NoSuchAlgorithmException, TransformerException, IOException {
+    return injectToken(doc, policyConfiguration, XmlEncoding.UTF_8);
+  }
+
+  /* Writes the result in the given encoding, with a declaration if the encoding needs one. */
+  ExposedByteArrayOutputStream injectToken(
+      Document doc, Inject.PolicyConfiguration policyConfiguration, XmlEncoding encoding)
+      throws NoSuchAlgorithmException, TransformerException, IOException {
+    ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream();
+    injectToken(doc, policyConfiguration, baos, encoding);
+    return baos;
+  }
+
+  /* As above, streaming the result to out, which is not closed. */
+  void injectToken(
+      Document doc,
+      Inject.PolicyConfiguration policyConfiguration,
+      OutputStream target,
+      XmlEncoding encoding)
+      throws NoSuchAlgorithmException, TransformerException, IOException {
+
+    // 0. grab the Envelope and Body elements
+    Element root = doc.getDocumentElement();
+    if (!"Envelope".equals(root.getLocalName())) {
+      throw new IllegalStateException("Not a SOAP Envelope, incorrect root element.");
+    }
+    String rootNs = root.getNamespaceURI();
+    if (!Namespaces.soapNamespaces.contains(rootNs)) {
+      throw new IllegalStateException("Not a SOAP Envelope, unsupported namespace.");
+    }
+    String soapns = rootNs;
+
+    NodeList nodes = doc.getElementsByTagNameNS(soapns, "Envelope");
+    if (nodes.getLength() != 1) {
+      throw new IllegalStateException("Not a SOAP Envelope, more than one Envelope.");
+    }
+    Element envelope = (Element) nodes.item(0);
+
+    nodes = envelope.getElementsByTagNameNS(soapns, "Body");
+    if (nodes.getLength() == 0) {
+      throw new IllegalStateException("Not a SOAP Envelope, missing Body.");
+    }
+    if (nodes.getLength() != 1) {
+      throw new IllegalStateException("Not a SOAP Envelope, more than one Body.");
+    }
+
+    Element body = (Element) nodes.item(0);
+
+    // 1. set up the map of namespaces
+    Map<String, String> knownNamespaces =
+        new HashMap<String, String>(Namespaces.getExistingNamespaces(envelope));
+    String wsuPrefix = declareXmlnsPrefix(envelope, knownNamespaces, Namespaces.WSU);
+    String soapPrefix = declareXmlnsPrefix(envelope, knownNamespaces, soapns);
+    String wssePrefix = declareXmlnsPrefix(envelope, knownNamespaces, Namespaces.WSSE);
+
+    // 2. generate the nonce, createdTime, password digest and IDs
+    Inject.TokenValues values = generateTokenValues(policyConfiguration);
+
+    // 3. find the place for the WS-Security header, and mark it with a
+    // placeholder. The header itself is rendered from a template, and
+    // replaces the placeholder in the serialized output.
+    Comment placeholder = doc.createComment(PLACEHOLDER_TEXT);
+    Element wssecHeader = null;
+    nodes = doc.getElementsByTagNameNS(soapns, "Header");
+    Element header = (nodes.getLength() == 0) ? null : (Element) nodes.item(0);
+    if (header == null) {
+      envelope.insertBefore(placeholder, body);
+    } else {
+      nodes = header.getElementsByTagNameNS(Namespaces.WSSE, "Security");
+      if (nodes.getLength() == 0) {
+        header.insertBefore(placeholder, header.getFirstChild());
+      } else {
+        wssecHeader = (Element) nodes.item(0);
+        wssecHeader.appendChild(placeholder);
+      }
+    }
+    SecurityHeaderTemplate.Rendered rendered =
+        getHeaderTemplate(
+                soapPrefix,
+                wssePrefix,
+                wsuPrefix,
+                header == null,
+                wssecHeader == null,
+                policyConfiguration)
+            .fill(policyConfiguration, values);
+
+    // 4. emit the resulting document. The rendered header takes the place of
+    // the placeholder as the document is written, in a single pass.
+    String declaredName = encoding.getDeclaredName();
+    if (declaredName != null) {
+      target.write(encoding.encode("<?xml version=\"1.0\" encoding=\"" + declaredName + "\"?>"));
+    }
+    HeaderInsertingStream out =
+        encoding.isUtf8()
+            ? new HeaderInsertingStream(target, PLACEHOLDER, rendered::writeTo)
+            : new HeaderInsertingStream(
+                target,
+                encoding.encode("<!--" + PLACEHOLDER_TEXT + "-->"),
+                headerOut -> headerOut.write(rendered.encode(encoding)));
+    try {
+      XmlUtils.write(doc, out, encoding);
+      out.finish();
+    } finally {
+      // The document may be the value of the source variable; leave it as it
+      // was, but for the namespace declarations.
+      placeholder.getParentNode().removeChild(placeholder);
+    }
+  }
+
+  /*
+   * Passes the serialized document through to the target, but for the
+   * placeholder comment, which it replaces with the header. Bytes that might
+   * begin the placeholder are held back until they match it or cannot.
+   */
+  static final class HeaderInsertingStream extends OutputStream {
+    interface Header {
+      void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final OutputStream target;
+    private final byte[] marker;
+    private final int[] fallback; // KMP failure function of the marker
+    private final Header header;
+    private final byte[] single = new byte[1];
+    private int matched; // the length of the marker prefix held back
+    private boolean inserted;
+
+    HeaderInsertingStream(OutputStream target, byte[] marker, Header header) {
+      this.target = target;
+      this.marker = marker;
+      this.header = header;
+      this.fallback = new int[marker.length];
+      for (int i = 1, k = 0; i < marker.length; i++) {
+        while (k > 0 && marker[i] != marker[k]) {
+          k = fallback[k - 1];
+        }
+        if (marker[i] == marker[k]) {
+          k++;
+        }
+        fallback[i] = k;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (inserted) {
+        target.write(b, off, len);
+        return;
+      }
+      int end = off + len;
+      int run = off; // the start of the bytes that are passed through as they are
+      for (int i = off; i < end; i++) {
+        byte c = b[i];
+        if (matched == 0) {
+          if (c != marker[0]) {
+            continue;
+          }
+          target.write(b, run, i - run);
+        }
+        while (matched > 0 && c != marker[matched]) {
+          int keep = fallback[matched - 1];
+          target.write(marker, 0, matched - keep);
+          matched = keep;
+        }
+        if (c != marker[matched]) {
+          run = i;
+          continue;
+        }
+        run = i + 1;
+        if (++matched == marker.length) {
+          matched = 0;
+          inserted = true;
+          header.writeTo(target);
+          target.write(b, run, end - run);
+          return;
+        }
+      }
+      target.write(b, run, end - run);
+    }
+
+    void finish() throws IOException {
+      if (!inserted) {
+        throw new IllegalStateException("cannot find the marker for the header");
+      }
+    }
+  }
+
+  SecurityHeaderTemplate getHeaderTemplate(
+      String soapPrefix,
+      String wssePrefix,
+      String wsuPrefix,
+      boolean wrapInHeader,
+      boolean wrapInSecurity,
+      Inject.PolicyConfiguration policyConfiguration) {
+    String key =
+        SecurityHeaderTemplate.key(
+            soapPrefix, wssePrefix, wsuPrefix, wrapInHeader, wrapInSecurity, policyConfiguration);
+    SecurityHeaderTemplate template = headerTemplates.get(key);
+    if (template == null) {
+      template =
+          SecurityHeaderTemplate.compile(
+              soapPrefix, wssePrefix, wsuPrefix, wrapInHeader, wrapInSecurity, policyConfiguration);
+      // the set of shapes is small in practice; do not let it grow without bound
+      if (headerTemplates.size() < MAX_HEADER_TEMPLATES) {
+        headerTemplates.putIfAbsent(key, template);
+      }
+    }
+    return template;
+  }
+
+  ExposedByteArrayOutputStream injectTokenStreaming(
+      XMLEventReader reader, Inject.PolicyConfiguration policyConfiguration)
+      throws NoSuchAlgorithmException, XMLStreamException {
+    return injectTokenStreaming(reader, policyConfiguration, XmlEncoding.UTF_8);
+  }
+
+  ExposedByteArrayOutputStream injectTokenStreaming(
+      XMLEventReader reader, Inject.PolicyConfiguration policyConfiguration, XmlEncoding encoding)
+      throws NoSuchAlgorithmException, XMLStreamException {
+    ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream();
+    injectTokenStreaming(reader, policyConfiguration, baos, encoding);
+    return baos;
+  }
+
+  /* Streams the result to out, which is not closed. */
+  void injectTokenStreaming(
+      XMLEventReader reader, Inject.PolicyConfiguration policyConfiguration, OutputStream out)
+      throws NoSuchAlgorithmException, XMLStreamException {
+    injectTokenStreaming(reader, policyConfiguration, out, XmlEncoding.UTF_8);
+  }
+
+  void injectTokenStreaming(
+      XMLEventReader reader,
+      Inject.PolicyConfiguration policyConfiguration,
+      OutputStream out,
+      XmlEncoding encoding)
+      throws NoSuchAlgorithmException, XMLStreamException {
+    Inject.TokenValues values = generateTokenValues(policyConfiguration);
+    new StaxInjector(policyConfiguration, values).inject(reader, out, encoding);
+  }
+
+  /*
+   * Splices into a message held in a buffer, which may be a mapped file. Only
+   * the start of the message is copied to the heap, for the scan; the rest is
+   * read from the buffer as the result is read. Returns null if the scan finds
+   * anything unusual, or does not reach the Body within the prefix.
+   */
+  InputStream injectTokenSplice(
+      ByteBuffer content, XmlEncoding encoding, Inject.PolicyConfiguration policyConfiguration)
+      throws NoSuchAlgorithmException {
+    byte[] prefix = new byte[Math.min(content.remaining(), SPLICE_SCAN_LIMIT)];
+    content.duplicate().get(prefix);
+    HeaderSplicer splicer = HeaderSplicer.scan(prefix, encoding);
+    if (splicer == null) {
+      return null;
+    }
+    Inject.TokenValues values = generateTokenValues(policyConfiguration);
+    SecurityHeaderTemplate.Rendered rendered =
+        getHeaderTemplate(
+                splicer.getSoapPrefix(),
+                splicer.getWssePrefix(),
+                splicer.getWsuPrefix(),
+                splicer.needsHeader(),
+                true,
+                policyConfiguration)
+            .fill(policyConfiguration, values);
+    ByteBuffer tail = content.duplicate();
+    tail.position(tail.position() + splicer.getTailOffset());
+    return new SequenceInputStream(
+        new ByteArrayInputStream(splicer.spliceHead(rendered)), new ByteBufferInputStream(tail));
+  }
+
+  ExposedByteArrayOutputStream injectTokenSplice(
+      byte[] content, Inject.PolicyConfiguration policyConfiguration) throws Exception {
+    return injectTokenSplice(content, XmlEncoding.UTF_8, policyConfiguration);
+  }
+
+  /*
+   * The message is in the given encoding, and the result is too. Only the
+   * header is encoded; the rest is copied from the message without decoding.
+   */
+  ExposedByteArrayOutputStream injectTokenSplice(
+      byte[] content, XmlEncoding encoding, Inject.PolicyConfiguration policyConfiguration)
+      throws Exception {
+    HeaderSplicer splicer = HeaderSplicer.scan(content, encoding);
+    if (splicer == null) {
+      // something unusual in the message prefix; use the DOM path
+      return injectToken(
+          XmlUtils.parseXml(new ByteArrayInputStream(content), encoding.getParserEncoding()),
+          policyConfiguration,
+          encoding);
+    }
+    Inject.TokenValues values = generateTokenValues(policyConfiguration);
+    SecurityHeaderTemplate.Rendered rendered =
+        getHeaderTemplate(
+                splicer.getSoapPrefix(),
+                splicer.getWssePrefix(),
+                splicer.getWsuPrefix(),
+                splicer.needsHeader(),
+                true,
+                policyConfiguration)
+            .fill(policyConfiguration, values);
+    return ExposedByteArrayOutputStream.wrap(splicer.splice(rendered));
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.TimeResolver;
+import com.google.apigee.xml.Namespaces;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Verifies the UsernameToken in an inbound message: the password, PasswordText or PasswordDigest,
+ * must match the configured password, and the Created and Expires times must be valid, within an
+ * allowance for clock skew. The WS-Security header is read with {@link SecurityHeaderReader},
+ * which never reads the soap:Body.
+ */
+public class Verify extends WssecUsernameTokenCalloutBase implements Execution {
+  private static final long DEFAULT_CLOCK_SKEW_MS = 60L * 1000;
+  private static final long DEFAULT_MAX_AGE_MS = 5L * 60 * 1000;
+
+  public Verify(Map properties) {
+    super(properties);
+  }
+
+  private static Long parseDuration(String expression) {
+    Long milliseconds = TimeResolver.resolveExpression(expression.trim());
+    return (milliseconds < 0L) ? null : milliseconds;
+  }
+
+  private long getDuration(String name, MessageContext msgCtxt, long defaultValue) {
+    Long milliseconds =
+        getParsedOptionalProperty(name, msgCtxt, Verify::parseDuration, defaultValue);
+    if (milliseconds == null) {
+      throw new IllegalStateException(name + " is not a valid time span");
+    }
+    return milliseconds;
+  }
+
+  private PasswordEncoding getRequiredPasswordEncoding(MessageContext msgCtxt) {
+    PasswordEncoding encoding =
+        getParsedOptionalProperty(
+            "password-encoding",
+            msgCtxt,
+            WssecUsernameTokenCalloutBase::parsePasswordEncoding,
+            null);
+    if (encoding == PasswordEncoding.NOT_SPECIFIED) {
+      msgCtxt.setVariable(varName("warning"), "unrecognized password-encoding");
+      return null;
+    }
+    return encoding;
+  }
+
+  private static Instant parseTime(String name, String value) {
+    try {
+      return OffsetDateTime.parse(value).toInstant();
+    } catch (DateTimeParseException e) {
+      throw new IllegalStateException("invalid " + name + " time");
+    }
+  }
+
+  private static boolean matches(String actual, String expected) {
+    // MessageDigest.isEqual takes time that depends only on the lengths
+    return MessageDigest.isEqual(
+        actual.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static boolean checkDigest(SecurityHeaderReader.Result token, String password) {
+    // without both, the digest does not change from one token to the next,
+    // and could be replayed indefinitely
+    if (token.nonce == null) {
+      throw new IllegalStateException("PasswordDigest requires a Nonce");
+    }
+    if (token.created == null) {
+      throw new IllegalStateException("PasswordDigest requires a Created time");
+    }
+    String nonce = token.nonce;
+    String created = token.created;
+    byte[] decodedNonce;
+    try {
+      decodedNonce = Base64.getDecoder().decode(nonce);
+    } catch (IllegalArgumentException e) {
+      // malformed or tampered; do not fall back to a digest without it
+      throw new IllegalStateException("invalid Nonce, not Base64");
+    }
+    // Inject digests the Base64 text of the nonce; the OASIS profile digests
+    // the decoded bytes. Accept either, and always compute both.
+    boolean ok = matches(token.password.trim(), PasswordDigest.compute(nonce, created, password));
+    ok |= matches(token.password.trim(), PasswordDigest.compute(decodedNonce, created, password));
+    return ok;
+  }
+
+  private void checkTimes(SecurityHeaderReader.Result token, MessageContext msgCtxt) {
+    long skew = getDuration("clock-skew", msgCtxt, DEFAULT_CLOCK_SKEW_MS);
+    long maxAge = getDuration("max-age", msgCtxt, DEFAULT_MAX_AGE_MS);
+    long now = System.currentTimeMillis();
+    if (token.timestampExpires != null) {
+      long t = parseTime("Expires", token.timestampExpires).toEpochMilli();
+      if (t < now - skew) {
+        throw new IllegalStateException("the message has expired");
+      }
+    }
+    String[] createdTimes = {token.created, token.timestampCreated};
+    for (String created : createdTimes) {
+      if (created != null) {
+        long t = parseTime("Created", created).toEpochMilli();
+        if (t > now + skew) {
+          throw new IllegalStateException("Created time is in the future");
+        }
+        if (t < now - maxAge - skew) {
+          throw new IllegalStateException("Created time is too old");
+        }
+      }
+    }
+  }
+
+  private void setResultVariables(SecurityHeaderReader.Result token, MessageContext msgCtxt) {
+    msgCtxt.setVariable(varName("username"), token.username);
+    msgCtxt.setVariable(varName("password_type"), token.passwordType);
+    if (token.nonce != null) {
+      msgCtxt.setVariable(varName("nonce"), token.nonce);
+    }
+    if (token.created != null) {
+      msgCtxt.setVariable(varName("created"), token.created);
+    }
+    if (token.timestampExpires != null) {
+      msgCtxt.setVariable(varName("expires"), token.timestampExpires);
+    }
+  }
+
+  private void verify(SecurityHeaderReader.Result token, MessageContext msgCtxt) {
+    String expectedUsername = getSimpleOptionalProperty("username", msgCtxt);
+    if (expectedUsername != null && !expectedUsername.trim().equals(token.username)) {
+      throw new IllegalStateException("username does not match");
+    }
+    String password = getPassword(msgCtxt);
+    if (token.password == null) {
+      throw new IllegalStateException("No Password found.");
+    }
+    boolean isDigest = Namespaces.USERNAMETOKEN_PASSWORDDIGEST.equals(token.passwordType);
+    boolean isText =
+        token.passwordType == null
+            || Namespaces.USERNAMETOKEN_PASSWORDTEXT.equals(token.passwordType);
+    if (!isDigest && !isText) {
+      throw new IllegalStateException("unsupported password Type");
+    }
+    PasswordEncoding requiredEncoding = getRequiredPasswordEncoding(msgCtxt);
+    if (requiredEncoding != null
+        && requiredEncoding != (isDigest ? PasswordEncoding.DIGEST : PasswordEncoding.TEXT)) {
+      throw new IllegalStateException("password Type is not " + requiredEncoding);
+    }
+    boolean ok = isDigest ? checkDigest(token, password) : matches(token.password, password);
+    if (!ok) {
+      throw new IllegalStateException("password does not match");
+    }
+    checkTimes(token, msgCtxt);
+  }
+
+  public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    try {
+      msgCtxt.setVariable(varName("valid"), "false");
+      SecurityHeaderReader.Result token = new SecurityHeaderReader().read(getEventReader(msgCtxt));
+      setResultVariables(token, msgCtxt);
+      verify(token, msgCtxt);
+      msgCtxt.setVariable(varName("valid"), "true");
+      return ExecutionResult.SUCCESS;
+    } catch (IllegalStateException exc1) {
+      setExceptionVariables(exc1, msgCtxt);
+      return ExecutionResult.ABORT;
+    } catch (Exception e) {
+      if (getDebug()) {
+        String stacktrace = getStackTraceAsString(e);
+        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
+      }
+      setExceptionVariables(e, msgCtxt);
+      return ExecutionResult.ABORT;
+    }
+  }
+}
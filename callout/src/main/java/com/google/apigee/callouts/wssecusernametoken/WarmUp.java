@@ -0,0 +1,110 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.TimeResolver;
+import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs synthetic envelopes through each engine, once per class loader, so that the first requests
+ * after a deployment do not pay for the JAXP factory lookups, the SecureRandom seeding, the
+ * MessageDigest provider lookup, and the interpreted execution of the inject path. The work runs
+ * on a daemon thread. If the runtime does not permit threads, it runs inline, in the constructor of
+ * the first Inject that asks for it.
+ */
+final class WarmUp {
+  private static final int ITERATIONS = 200;
+  private static final String[] ENVELOPES = {
+    "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>"
+        + "<soapenv:Body><ns1:sum xmlns:ns1='http://ws.example.com/'>9</ns1:sum></soapenv:Body>"
+        + "</soapenv:Envelope>",
+    "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'><soap:Header/>"
+        + "<soap:Body><ns1:sum xmlns:ns1='http://ws.example.com/'>9</ns1:sum></soap:Body>"
+        + "</soap:Envelope>"
+  };
+
+  private static final AtomicBoolean started = new AtomicBoolean();
+  private static final CountDownLatch done = new CountDownLatch(1);
+
+  private WarmUp() {}
+
+  static void start() {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Thread thread = new Thread(WarmUp::run, "wssec-warm-up");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+    } catch (RuntimeException e) {
+      // The runtime may not permit threads (SecurityException).
+      run();
+    }
+  }
+
+  /* Runs the warm-up on the calling thread, as start does when threads are not permitted. */
+  static void startInline() {
+    if (started.compareAndSet(false, true)) {
+      run();
+    }
+  }
+
+  /* Returns true if the warm-up has finished within the timeout. */
+  static boolean await(long timeoutMillis) throws InterruptedException {
+    return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static void run() {
+    try {
+      TimeResolver.resolveExpression("5m");
+      Inject.PolicyConfiguration[] configurations = {
+        new Inject.PolicyConfiguration()
+            .withUsername("warm-up")
+            .withPassword("warm-up")
+            .withPasswordEncoding(Inject.PasswordEncoding.TEXT),
+        new Inject.PolicyConfiguration()
+            .withUsername("warm-up")
+            .withPassword("warm-up")
+            .withPasswordEncoding(Inject.PasswordEncoding.DIGEST)
+            .withExpiresIn(300)
+      };
+      TokenInjector injector = new TokenInjector();
+      for (int i = 0; i < ITERATIONS; i++) {
+        for (String envelope : ENVELOPES) {
+          byte[] content = envelope.getBytes(StandardCharsets.UTF_8);
+          for (Inject.PolicyConfiguration configuration : configurations) {
+            EnvelopePrescan.check(content);
+            injector.injectToken(
+                XmlUtils.parseXml(new ByteArrayInputStream(content)), configuration);
+            injector.injectTokenStreaming(
+                XmlUtils.newEventReader(new ByteArrayInputStream(content)), configuration);
+            injector.injectTokenSplice(content, configuration);
+          }
+        }
+      }
+    } catch (Exception e) {
+      // The warm-up is best effort; a real problem shows up on the request path.
+    } finally {
+      done.countDown();
+    }
+  }
+}
@@ -15,56 +15,213 @@
 
 package com.google.apigee.callouts.wssecusernametoken;
 
+import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.ByteBufferInputStream;
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import com.google.apigee.util.PropertyTemplate;
+import com.google.apigee.util.StreamUtils;
+import com.google.apigee.util.XmlEncoding;
 import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.xml.stream.XMLEventReader;
 import org.w3c.dom.Document;
 
 public abstract class WssecUsernameTokenCalloutBase {
   private static final String _varprefix = "wssec_";
-  private Map properties; // read-only
-  private static final String variableReferencePatternString = "(.*?)\\{([^\\{\\} ]+?)\\}(.*?)";
-  private static final Pattern variableReferencePattern =
-      Pattern.compile(variableReferencePatternString);
+  protected static final String MESSAGE_CONTENT = "message.content";
+  private final Map<String, PropertyTemplate> properties; // compiled, read-only
+  private final boolean debug;
 
   private static final String commonError = "^(.+?)[:;] (.+)$";
   private static final Pattern commonErrorPattern = Pattern.compile(commonError);
 
   public WssecUsernameTokenCalloutBase(Map properties) {
-    this.properties = properties;
+    this.properties = compileProperties(properties);
+    String debugValue = (String) properties.get("debug");
+    this.debug = debugValue != null && debugValue.trim().toLowerCase().equals("true");
+  }
+
+  // Compile each property value once, into literal text and references to
+  // context variables, eg {apiproxy.name}. Values that are empty after
+  // trimming are treated as absent.
+  private static Map<String, PropertyTemplate> compileProperties(Map properties) {
+    Map<String, PropertyTemplate> compiled = new HashMap<String, PropertyTemplate>();
+    for (Object key : properties.keySet()) {
+      Object value = properties.get(key);
+      if (value != null) {
+        String spec = value.toString().trim();
+        if (!spec.equals("")) {
+          compiled.put(key.toString(), PropertyTemplate.compile(spec));
+        }
+      }
+    }
+    return Collections.unmodifiableMap(compiled);
   }
 
   static String varName(String s) {
     return _varprefix + s;
   }
 
+  // The message content, decompressed as it is read when the message has a
+  // Content-Encoding of gzip or deflate.
+  protected InputStream getContentStream(MessageContext msgCtxt) throws IOException {
+    InputStream in = msgCtxt.getMessage().getContentAsStream();
+    ContentCoding coding = getContentCoding(msgCtxt);
+    return (coding == null) ? in : coding.decode(in);
+  }
+
+  ContentCoding getContentCoding(MessageContext msgCtxt) {
+    return ContentCoding.forHeader(msgCtxt.getMessage().getHeader("content-encoding"));
+  }
+
+  // The character encoding of the message content, from the start of a stream
+  // that supports mark, and the Content-Type of the message.
+  XmlEncoding getContentEncoding(MessageContext msgCtxt, InputStream in) throws IOException {
+    return XmlEncoding.detect(in, msgCtxt.getMessage().getHeader("content-type"));
+  }
+
+  // The value of the source variable. Besides a String, it may be a byte[], a
+  // ByteBuffer, an InputStream, a Message, or an already parsed Document.
+  Object getSourceValue(MessageContext msgCtxt, String source) {
+    Object value = msgCtxt.getVariable(source);
+    if (value == null) {
+      throw new IllegalStateException("source variable resolves to null");
+    }
+    if (!(value instanceof String
+        || value instanceof byte[]
+        || value instanceof ByteBuffer
+        || value instanceof InputStream
+        || value instanceof Message
+        || value instanceof Document)) {
+      throw new IllegalStateException(
+          "source variable has an unsupported type: " + value.getClass().getName());
+    }
+    return value;
+  }
+
+  // A stream over a source value that is neither a String nor a Document. The
+  // content of a Message is decompressed as it is read, as for the message
+  // content. A ByteBuffer is read through a duplicate, so its position does
+  // not move.
+  InputStream getSourceStream(Object value) throws IOException {
+    if (value instanceof byte[]) {
+      return new ByteArrayInputStream((byte[]) value);
+    }
+    if (value instanceof ByteBuffer) {
+      return new ByteBufferInputStream(((ByteBuffer) value).duplicate());
+    }
+    if (value instanceof Message) {
+      Message message = (Message) value;
+      ContentCoding coding = ContentCoding.forHeader(message.getHeader("content-encoding"));
+      InputStream in = message.getContentAsStream();
+      return (coding == null) ? in : coding.decode(in);
+    }
+    return (InputStream) value;
+  }
+
+  // The character encoding of a source value read with getSourceStream, from
+  // the start of the stream, and for a Message, its Content-Type.
+  XmlEncoding getSourceEncoding(Object value, InputStream in) throws IOException {
+    String contentType =
+        (value instanceof Message) ? ((Message) value).getHeader("content-type") : null;
+    return XmlEncoding.detect(in, contentType);
+  }
+
+  // Each of these checks the start of the content with EnvelopePrescan, so that
+  // content that is plainly not SOAP fails before the parse. Each takes the
+  // cheapest path for the type of the source value: a Document is used as it
+  // is, and bytes are parsed without first being decoded to a String.
+
   protected Document getDocument(MessageContext msgCtxt) throws Exception {
     String source = getSimpleOptionalProperty("source", msgCtxt);
     if (source == null) {
-      return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
+      InputStream in = EnvelopePrescan.check(getContentStream(msgCtxt));
+      return XmlUtils.parseXml(in, getContentEncoding(msgCtxt, in).getParserEncoding());
     }
-    String text = (String) msgCtxt.getVariable(source);
-    if (text == null) {
-      throw new IllegalStateException("source variable resolves to null");
+    Object value = getSourceValue(msgCtxt, source);
+    if (value instanceof Document) {
+      return (Document) value;
     }
-    return XmlUtils.parseXml(text);
+    if (value instanceof String) {
+      String text = (String) value;
+      EnvelopePrescan.check(text);
+      return XmlUtils.parseXml(text);
+    }
+    InputStream in = EnvelopePrescan.check(getSourceStream(value));
+    return XmlUtils.parseXml(in, getSourceEncoding(value, in).getParserEncoding());
+  }
+
+  // The bytes are in the encoding of the source; a String or a Document is
+  // encoded as UTF-8.
+  protected byte[] getSourceBytes(MessageContext msgCtxt) throws Exception {
+    String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (source == null) {
+      byte[] content = StreamUtils.readAllBytes(getContentStream(msgCtxt));
+      EnvelopePrescan.check(content);
+      return content;
+    }
+    Object value = getSourceValue(msgCtxt, source);
+    if (value instanceof String) {
+      String text = (String) value;
+      EnvelopePrescan.check(text);
+      return text.getBytes(StandardCharsets.UTF_8);
+    }
+    if (value instanceof Document) {
+      ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+      XmlUtils.write((Document) value, out);
+      return out.toByteArray();
+    }
+    byte[] content =
+        (value instanceof byte[])
+            ? (byte[]) value
+            : StreamUtils.readAllBytes(getSourceStream(value));
+    EnvelopePrescan.check(content);
+    return content;
+  }
+
+  protected XMLEventReader getEventReader(MessageContext msgCtxt) throws Exception {
+    String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (source == null) {
+      InputStream in = EnvelopePrescan.check(getContentStream(msgCtxt));
+      return XmlUtils.newEventReader(in, getContentEncoding(msgCtxt, in).getParserEncoding());
+    }
+    Object value = getSourceValue(msgCtxt, source);
+    if (value instanceof String) {
+      String text = (String) value;
+      EnvelopePrescan.check(text);
+      return XmlUtils.newEventReader(text);
+    }
+    if (value instanceof Document) {
+      // The StAX implementation in the JDK cannot read from a DOMSource.
+      ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+      XmlUtils.write((Document) value, out);
+      return XmlUtils.newEventReader(out.toInputStream());
+    }
+    InputStream in = EnvelopePrescan.check(getSourceStream(value));
+    return XmlUtils.newEventReader(in, getSourceEncoding(value, in).getParserEncoding());
   }
 
   protected boolean getDebug() {
-    String value = (String) this.properties.get("debug");
-    if (value == null) return false;
-    if (value.trim().toLowerCase().equals("true")) return true;
-    return false;
+    return debug;
   }
 
   protected String getOutputVar(MessageContext msgCtxt) throws Exception {
     String dest = getSimpleOptionalProperty("output-variable", msgCtxt);
     if (dest == null) {
-      return "message.content";
+      return MESSAGE_CONTENT;
     }
     return dest;
   }
@@ -75,66 +232,88 @@ public abstract class WssecUsernameTokenCalloutBase {
     DIGEST
   }
 
-  protected PasswordEncoding getPasswordEncoding(MessageContext msgCtxt) {
-    String encodingString = getSimpleOptionalProperty("password-encoding", msgCtxt);
-    if (encodingString == null) return PasswordEncoding.TEXT;
+  static PasswordEncoding parsePasswordEncoding(String encodingString) {
     encodingString = encodingString.trim().toUpperCase();
     if (encodingString.equals("TEXT")) return PasswordEncoding.TEXT;
     if (encodingString.equals("DIGEST")) return PasswordEncoding.DIGEST;
+    return PasswordEncoding.NOT_SPECIFIED;
+  }
+
+  protected PasswordEncoding getPasswordEncoding(MessageContext msgCtxt) {
+    PasswordEncoding encoding =
+        getParsedOptionalProperty(
+            "password-encoding",
+            msgCtxt,
+            WssecUsernameTokenCalloutBase::parsePasswordEncoding,
+            PasswordEncoding.TEXT);
+    if (encoding != PasswordEncoding.NOT_SPECIFIED) return encoding;
     msgCtxt.setVariable(varName("warning"), "unrecognized password-encoding");
     return PasswordEncoding.TEXT;
   }
 
+  enum Engine {
+    DOM,
+    STAX,
+    SPLICE
+  }
+
+  private static Engine parseEngine(String engineString) {
+    engineString = engineString.trim().toUpperCase();
+    if (engineString.equals("DOM")) return Engine.DOM;
+    if (engineString.equals("STAX")) return Engine.STAX;
+    if (engineString.equals("SPLICE")) return Engine.SPLICE;
+    return null;
+  }
+
+  protected Engine getEngine(MessageContext msgCtxt) {
+    Engine engine =
+        getParsedOptionalProperty(
+            "engine", msgCtxt, WssecUsernameTokenCalloutBase::parseEngine, Engine.DOM);
+    if (engine != null) return engine;
+    msgCtxt.setVariable(varName("warning"), "unrecognized engine");
+    return Engine.DOM;
+  }
+
   protected String getSimpleOptionalProperty(String propName, MessageContext msgCtxt) {
-    String value = (String) this.properties.get(propName);
-    if (value == null) {
+    PropertyTemplate template = this.properties.get(propName);
+    if (template == null) {
       return null;
     }
-    value = value.trim();
+    String value = template.resolve(msgCtxt::getVariable);
     if (value.equals("")) {
       return null;
     }
-    value = resolvePropertyValue(value, msgCtxt);
-    if (value == null || value.equals("")) {
-      return null;
-    }
     return value;
   }
 
   protected String getSimpleRequiredProperty(String propName, MessageContext msgCtxt)
       throws IllegalStateException {
-    String value = (String) this.properties.get(propName);
+    String value = getSimpleOptionalProperty(propName, msgCtxt);
     if (value == null) {
       throw new IllegalStateException(propName + " resolves to an empty string");
     }
-    value = value.trim();
-    if (value.equals("")) {
-      throw new IllegalStateException(propName + " resolves to an empty string");
-    }
-    value = resolvePropertyValue(value, msgCtxt);
-    if (value == null || value.equals("")) {
-      throw new IllegalStateException(propName + " resolves to an empty string");
-    }
     return value;
   }
 
-  // If the value of a property contains any pairs of curlies,
-  // eg, {apiproxy.name}, then "resolve" the value by de-referencing
-  // the context variables whose names appear between curlies.
-  private String resolvePropertyValue(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      Object v = msgCtxt.getVariable(matcher.group(2));
-      if (v != null) {
-        sb.append((String) v);
-      }
-      sb.append(matcher.group(3));
+  /*
+   * Resolves the named property, and converts it with the parser. If the
+   * property holds no variable references, it is parsed only once. Returns the
+   * defaultValue if the property is absent or resolves to an empty string.
+   */
+  protected <T> T getParsedOptionalProperty(
+      String propName, MessageContext msgCtxt, Function<String, T> parser, T defaultValue) {
+    PropertyTemplate template = this.properties.get(propName);
+    if (template == null) {
+      return defaultValue;
+    }
+    if (template.isConstant()) {
+      return template.parseConstant(parser);
+    }
+    String value = template.resolve(msgCtxt::getVariable);
+    if (value.equals("")) {
+      return defaultValue;
     }
-    matcher.appendTail(sb);
-    return sb.toString();
+    return parser.apply(value);
   }
 
   protected String getUsername(MessageContext msgCtxt) {
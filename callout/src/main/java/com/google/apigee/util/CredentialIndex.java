@@ -0,0 +1,123 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An immutable index of passwords by username, parsed from content in java.util.Properties format,
+ * eg "emil@gaffanon.com = Albatross1". Each entry holds the UTF-8 bytes of the password along with
+ * the password itself.
+ *
+ * <p>Shared indexes are kept per source, and replaced as a whole when they are older than the
+ * time-to-live. One thread reloads the source, while the others go on using the previous index.
+ */
+public final class CredentialIndex {
+  public static final class Credential {
+    public final String password;
+    public final byte[] passwordUtf8;
+
+    Credential(String password) {
+      this.password = password;
+      this.passwordUtf8 = password.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final ConcurrentMap<String, Holder> holders =
+      new ConcurrentHashMap<String, Holder>();
+
+  private final Map<String, Credential> credentials;
+  private final long loadedAt;
+
+  private CredentialIndex(Map<String, Credential> credentials, long loadedAt) {
+    this.credentials = credentials;
+    this.loadedAt = loadedAt;
+  }
+
+  public static CredentialIndex parse(String content, long loadedAt) throws IOException {
+    Properties properties = new Properties();
+    properties.load(new StringReader(content));
+    Map<String, Credential> credentials = new HashMap<String, Credential>();
+    for (String username : properties.stringPropertyNames()) {
+      credentials.put(username, new Credential(properties.getProperty(username).trim()));
+    }
+    return new CredentialIndex(Collections.unmodifiableMap(credentials), loadedAt);
+  }
+
+  /* Returns null if there is no entry for the username. */
+  public Credential get(String username) {
+    return credentials.get(username);
+  }
+
+  public int size() {
+    return credentials.size();
+  }
+
+  private static final class Holder {
+    volatile CredentialIndex current;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+  }
+
+  /*
+   * Returns the shared index for the source, loading it with the loader if
+   * it is absent or older than ttlMillis. A failed refresh leaves the previous
+   * index in place; only the first load of a source can fail the caller.
+   */
+  public static CredentialIndex getInstance(
+      String source, long ttlMillis, Callable<String> loader) throws Exception {
+    return getInstance(source, ttlMillis, loader, System.currentTimeMillis());
+  }
+
+  static CredentialIndex getInstance(
+      String source, long ttlMillis, Callable<String> loader, long now) throws Exception {
+    Holder holder = holders.get(source);
+    if (holder == null) {
+      holder = new Holder();
+      Holder existing = holders.putIfAbsent(source, holder);
+      if (existing != null) holder = existing;
+    }
+    CredentialIndex index = holder.current;
+    if (index == null) {
+      synchronized (holder) {
+        if (holder.current == null) {
+          holder.current = parse(loader.call(), now);
+        }
+        return holder.current;
+      }
+    }
+    if (now - index.loadedAt >= ttlMillis && holder.refreshing.compareAndSet(false, true)) {
+      try {
+        holder.current = index = parse(loader.call(), now);
+      } catch (Exception e) {
+        // keep the previous index; try again after another ttl
+        holder.current = index = new CredentialIndex(index.credentials, now);
+      } finally {
+        holder.refreshing.set(false);
+      }
+    }
+    return index;
+  }
+}
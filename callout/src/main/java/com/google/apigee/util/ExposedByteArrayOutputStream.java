@@ -0,0 +1,62 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A ByteArrayOutputStream that gives access to its buffer, so that the content can be searched in
+ * place, or read back as an InputStream, without the copy that toByteArray() makes.
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+  public ExposedByteArrayOutputStream() {
+    super();
+  }
+
+  public ExposedByteArrayOutputStream(int size) {
+    super(size);
+  }
+
+  /* Takes ownership of the array; the caller must not modify it afterwards. */
+  public static ExposedByteArrayOutputStream wrap(byte[] content) {
+    ExposedByteArrayOutputStream stream = new ExposedByteArrayOutputStream(0);
+    stream.buf = content;
+    stream.count = content.length;
+    return stream;
+  }
+
+  /* The internal buffer; only the first size() bytes are valid. */
+  public synchronized byte[] getBuffer() {
+    return buf;
+  }
+
+  /* An InputStream over the current content, sharing the buffer. */
+  public synchronized InputStream toInputStream() {
+    return new ByteArrayInputStream(buf, 0, count);
+  }
+
+  public synchronized String toUtf8String() {
+    return new String(buf, 0, count, StandardCharsets.UTF_8);
+  }
+
+  public synchronized String toString(Charset charset) {
+    return new String(buf, 0, count, charset);
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates values for wsu:Id attributes, eg UT-3-1042, unique within the JVM. Each thread gets a
+ * distinct stripe number the first time it asks for an ID, and after that counts in its own
+ * sequence, so generating an ID touches no state shared with other threads. An optional node
+ * discriminator, eg UT-node7-3-1042, makes the IDs unique across a cluster.
+ */
+public class IdGenerator {
+  private static final AtomicInteger stripes = new AtomicInteger();
+  private static final ThreadLocal<Sequence> sequences =
+      ThreadLocal.withInitial(() -> new Sequence(stripes.getAndIncrement()));
+
+  private static final class Sequence {
+    final String stripe;
+    long next = 1;
+
+    Sequence(int stripe) {
+      this.stripe = Integer.toString(stripe);
+    }
+  }
+
+  /* A discriminator must be usable as-is within an xsd:ID and an attribute value. */
+  public static boolean isValidDiscriminator(String discriminator) {
+    if (discriminator.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < discriminator.length(); i++) {
+      char c = discriminator.charAt(i);
+      boolean ok =
+          (c >= 'a' && c <= 'z')
+              || (c >= 'A' && c <= 'Z')
+              || (c >= '0' && c <= '9')
+              || c == '-'
+              || c == '_'
+              || c == '.';
+      if (!ok) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static String nextId(String type, String discriminator) {
+    Sequence sequence = sequences.get();
+    StringBuilder sb = new StringBuilder(32).append(type).append('-');
+    if (discriminator != null) {
+      sb.append(discriminator).append('-');
+    }
+    return sb.append(sequence.stripe).append('-').append(sequence.next++).toString();
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produces random nonces from a pool that a background thread keeps full, so that the request
+ * path only dequeues bytes and never waits on the entropy source. If the pool is empty, the
+ * nonce is generated inline. There is one generator per SecureRandom algorithm and nonce length.
+ */
+public class NonceGenerator {
+  // DRBG is not available before Java 9; in that case use the platform default.
+  public static final String DEFAULT_ALGORITHM = "DRBG";
+  private static final int POOL_CAPACITY = 1024;
+  private static final int LOW_WATER_MARK = POOL_CAPACITY / 4;
+
+  private static final ConcurrentMap<String, NonceGenerator> generators =
+      new ConcurrentHashMap<String, NonceGenerator>();
+  private static ExecutorService refiller;
+
+  private final SecureRandom random;
+  private final int nonceLength;
+  private final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger poolSize = new AtomicInteger();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+
+  private NonceGenerator(SecureRandom random, int nonceLength) {
+    this.random = random;
+    this.nonceLength = nonceLength;
+  }
+
+  /*
+   * Returns the shared generator for the given SecureRandom algorithm, eg
+   * DRBG, NativePRNGNonBlocking, SHA1PRNG. A null algorithm means the default.
+   */
+  public static NonceGenerator getInstance(String algorithm, int nonceLength)
+      throws NoSuchAlgorithmException {
+    String key = ((algorithm == null) ? "" : algorithm) + "/" + nonceLength;
+    NonceGenerator generator = generators.get(key);
+    if (generator == null) {
+      generator = new NonceGenerator(newSecureRandom(algorithm), nonceLength);
+      NonceGenerator existing = generators.putIfAbsent(key, generator);
+      if (existing != null) {
+        generator = existing;
+      } else {
+        generator.requestRefill();
+      }
+    }
+    return generator;
+  }
+
+  private static SecureRandom newSecureRandom(String algorithm) throws NoSuchAlgorithmException {
+    if (algorithm != null) {
+      return SecureRandom.getInstance(algorithm);
+    }
+    try {
+      return SecureRandom.getInstance(DEFAULT_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  public byte[] nextNonce() {
+    byte[] nonce = pool.poll();
+    if (nonce != null) {
+      if (poolSize.decrementAndGet() < LOW_WATER_MARK) {
+        requestRefill();
+      }
+      return nonce;
+    }
+    requestRefill();
+    nonce = new byte[nonceLength];
+    random.nextBytes(nonce);
+    return nonce;
+  }
+
+  private void requestRefill() {
+    if (!refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      getRefiller().execute(this::refill);
+    } catch (RuntimeException e) {
+      // The runtime may not permit threads (SecurityException), or the
+      // executor may be shut down. Either way, nonces will be generated inline.
+      refilling.set(false);
+    }
+  }
+
+  private void refill() {
+    try {
+      while (poolSize.get() < POOL_CAPACITY) {
+        byte[] nonce = new byte[nonceLength];
+        random.nextBytes(nonce);
+        pool.offer(nonce);
+        poolSize.incrementAndGet();
+      }
+    } finally {
+      refilling.set(false);
+    }
+  }
+
+  private static synchronized ExecutorService getRefiller() {
+    if (refiller == null) {
+      refiller =
+          Executors.newSingleThreadExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "wssec-nonce-refill");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return refiller;
+  }
+}
@@ -0,0 +1,306 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers nonces for a time window, to detect replayed tokens. Each nonce is reduced to a 128-bit
+ * fingerprint, the first half of its SHA-256 hash, and stored as two longs in open-addressed
+ * arrays, so that millions of entries put no pressure on the garbage collector.
+ *
+ * <p>The window is divided into time buckets. A nonce is recorded in the current bucket and is
+ * checked against all live buckets; a bucket that falls out of the window is cleared and reused.
+ * Storage is striped by fingerprint, with a lock per stripe, so that threads contend only when
+ * their nonces land in the same stripe.
+ *
+ * <p>The number of entries across the live buckets is capped at the capacity, however the nonces
+ * arrive within the window: a burst may fill it in one bucket. That puts a hard bound on memory, of
+ * 32 to 64 bytes per live entry, plus a table for an even share of the capacity in each bucket that
+ * is kept for reuse. Threads that record at the same instant may together overshoot the cap by at
+ * most one entry each.
+ */
+public class NonceReplayCache {
+  public enum Result {
+    NEW, // recorded
+    REPLAY, // seen within the window
+    FULL // not recorded; the window holds as many entries as the capacity allows
+  }
+
+  private static final int STRIPES = 64; // a power of two
+  // The window spans BUCKETS - 1 buckets, and one more holds the part of the
+  // window that began in the oldest of them.
+  private static final int BUCKETS = 9;
+
+  private static final ThreadLocal<Fingerprinter> fingerprinters =
+      ThreadLocal.withInitial(Fingerprinter::new);
+
+  private final long bucketMillis;
+  private final int maxEntries;
+  private final int evenSlots; // table slots for an even share of the capacity
+  private final Object[] locks = new Object[STRIPES];
+  private final Table[][] tables = new Table[BUCKETS][STRIPES];
+  // entries per bucket, across the stripes, and the epoch each count belongs to
+  private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKETS);
+  private final AtomicIntegerArray bucketCounts = new AtomicIntegerArray(BUCKETS);
+  private final AtomicLong latestEpoch = new AtomicLong(Long.MIN_VALUE);
+
+  /* An open-addressed table of fingerprints, for one stripe of one bucket. */
+  private static final class Table {
+    long epoch = Long.MIN_VALUE; // the bucket epoch the content belongs to
+    long[] keys; // pairs of longs; (0, 0) marks an empty slot
+    int size;
+  }
+
+  /*
+   * windowMillis is how long a nonce must be remembered; set it to cover the
+   * oldest Created time that is accepted, including clock skew. maxEntries
+   * is the most nonces that may be recorded in one window, whether they
+   * arrive evenly or in a burst.
+   */
+  public NonceReplayCache(long windowMillis, int maxEntries) {
+    if (windowMillis <= 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException("the window and the capacity must be positive");
+    }
+    this.bucketMillis = Math.max(1L, (windowMillis + BUCKETS - 2) / (BUCKETS - 1));
+    this.maxEntries = maxEntries;
+    this.evenSlots = tableSlots(Math.max(1, maxEntries / ((BUCKETS - 1) * STRIPES)));
+    for (int b = 0; b < BUCKETS; b++) {
+      bucketEpochs.set(b, Long.MIN_VALUE);
+    }
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+      for (int b = 0; b < BUCKETS; b++) {
+        tables[b][i] = new Table();
+      }
+    }
+  }
+
+  /* Checks for the nonce and, if it has not been seen within the window, records it. */
+  public Result checkAndRecord(CharSequence nonce) {
+    return checkAndRecord(nonce, null, System.currentTimeMillis());
+  }
+
+  /*
+   * As above, for the pair of the nonce and the Created time, as the
+   * UsernameToken profile describes. The created time may be null.
+   */
+  public Result checkAndRecord(CharSequence nonce, CharSequence created) {
+    return checkAndRecord(nonce, created, System.currentTimeMillis());
+  }
+
+  Result checkAndRecord(CharSequence nonce, long nowMillis) {
+    return checkAndRecord(nonce, null, nowMillis);
+  }
+
+  Result checkAndRecord(CharSequence nonce, CharSequence created, long nowMillis) {
+    Fingerprinter fingerprinter = fingerprinters.get();
+    fingerprinter.compute(nonce, created);
+    long hi = fingerprinter.hi;
+    long lo = fingerprinter.lo;
+    if (hi == 0L && lo == 0L) {
+      lo = 1L; // (0, 0) marks an empty slot
+    }
+    int stripe = (int) (hi >>> 58) & (STRIPES - 1);
+    long epoch = currentEpoch(nowMillis);
+    int bucket = (int) Math.floorMod(epoch, (long) BUCKETS);
+
+    synchronized (locks[stripe]) {
+      for (long e = epoch - BUCKETS + 1; e <= epoch; e++) {
+        Table table = tables[(int) Math.floorMod(e, (long) BUCKETS)][stripe];
+        if (table.epoch == e && contains(table, hi, lo)) {
+          return Result.REPLAY;
+        }
+      }
+      if (!reserve(bucket, epoch)) {
+        return Result.FULL;
+      }
+      Table current = tables[bucket][stripe];
+      if (current.epoch != epoch) {
+        // the slot held an expired bucket; reuse the storage, unless a burst
+        // grew it beyond an even share
+        if (current.keys != null && current.keys.length > 2 * evenSlots) {
+          current.keys = null;
+        } else if (current.keys != null) {
+          Arrays.fill(current.keys, 0L);
+        }
+        current.size = 0;
+        current.epoch = epoch;
+      }
+      if (current.keys == null) {
+        current.keys = new long[2 * evenSlots];
+      } else if (2 * (current.size + 1) > (current.keys.length >> 1)) {
+        grow(current);
+      }
+      insert(current, hi, lo);
+      return Result.NEW;
+    }
+  }
+
+  /* The epoch of the current bucket. It does not go back if the clock does. */
+  private long currentEpoch(long nowMillis) {
+    long epoch = nowMillis / bucketMillis;
+    long latest = latestEpoch.get();
+    while (epoch > latest) {
+      if (latestEpoch.compareAndSet(latest, epoch)) {
+        return epoch;
+      }
+      latest = latestEpoch.get();
+    }
+    return latest;
+  }
+
+  /* Counts one more entry in the bucket, if the live buckets have room for it. */
+  private boolean reserve(int bucket, long epoch) {
+    long bucketEpoch = bucketEpochs.get(bucket);
+    while (bucketEpoch < epoch) {
+      // the bucket has expired; start it afresh, once
+      synchronized (bucketEpochs) {
+        if (bucketEpochs.get(bucket) < epoch) {
+          bucketCounts.set(bucket, 0);
+          bucketEpochs.set(bucket, epoch);
+        }
+      }
+      bucketEpoch = bucketEpochs.get(bucket);
+    }
+    if (bucketEpoch != epoch) {
+      // the window moved on while this thread waited; the caller may retry
+      return false;
+    }
+    long live = 0L;
+    for (int b = 0; b < BUCKETS; b++) {
+      long e = bucketEpochs.get(b);
+      if (e > epoch - BUCKETS && e <= epoch) {
+        live += bucketCounts.get(b);
+      }
+    }
+    if (live >= maxEntries) {
+      return false;
+    }
+    bucketCounts.incrementAndGet(bucket);
+    return true;
+  }
+
+  /* Doubles the table, for a bucket that holds more than an even share. */
+  private static void grow(Table table) {
+    long[] old = table.keys;
+    table.keys = new long[2 * old.length];
+    table.size = 0;
+    for (int i = 0; i < old.length; i += 2) {
+      if (old[i] != 0L || old[i + 1] != 0L) {
+        insert(table, old[i], old[i + 1]);
+      }
+    }
+  }
+
+  /* A power of two, at least twice the capacity, so that probe sequences stay short. */
+  private static int tableSlots(int capacity) {
+    return Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+  }
+
+  private static boolean contains(Table table, long hi, long lo) {
+    if (table.keys == null) {
+      return false;
+    }
+    long[] keys = table.keys;
+    int mask = (keys.length >> 1) - 1;
+    for (int slot = (int) lo & mask; ; slot = (slot + 1) & mask) {
+      long h = keys[2 * slot];
+      long l = keys[2 * slot + 1];
+      if (h == hi && l == lo) {
+        return true;
+      }
+      if (h == 0L && l == 0L) {
+        return false;
+      }
+    }
+  }
+
+  private static void insert(Table table, long hi, long lo) {
+    long[] keys = table.keys;
+    int mask = (keys.length >> 1) - 1;
+    int slot = (int) lo & mask;
+    while (keys[2 * slot] != 0L || keys[2 * slot + 1] != 0L) {
+      slot = (slot + 1) & mask;
+    }
+    keys[2 * slot] = hi;
+    keys[2 * slot + 1] = lo;
+    table.size++;
+  }
+
+  /* Computes SHA-256 over the UTF-16 code units of the nonce, without allocating. */
+  private static final class Fingerprinter {
+    private final MessageDigest sha256;
+    private final byte[] digest = new byte[32];
+    private byte[] scratch = new byte[128];
+    long hi;
+    long lo;
+
+    Fingerprinter() {
+      try {
+        sha256 = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        // every Java platform is required to support SHA-256
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void compute(CharSequence nonce, CharSequence created) {
+      sha256.reset();
+      update(nonce);
+      if (created != null) {
+        // a noncharacter, which cannot appear in either, separates the two
+        sha256.update((byte) 0xFF);
+        sha256.update((byte) 0xFF);
+        update(created);
+      }
+      try {
+        sha256.digest(digest, 0, digest.length);
+      } catch (DigestException e) {
+        throw new IllegalStateException(e);
+      }
+      hi = toLong(digest, 0);
+      lo = toLong(digest, 8);
+    }
+
+    private void update(CharSequence s) {
+      int length = s.length();
+      if (scratch.length < 2 * length) {
+        scratch = new byte[2 * length];
+      }
+      for (int i = 0; i < length; i++) {
+        char c = s.charAt(i);
+        scratch[2 * i] = (byte) (c >>> 8);
+        scratch[2 * i + 1] = (byte) c;
+      }
+      sha256.update(scratch, 0, 2 * length);
+    }
+
+    private static long toLong(byte[] b, int offset) {
+      long v = 0L;
+      for (int i = 0; i < 8; i++) {
+        v = (v << 8) | (b[offset + i] & 0xFFL);
+      }
+      return v;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A property value compiled into literal text and variable references, eg "{apiproxy.name}". A
+ * variable reference is a pair of curlies around a name that contains no spaces and no curlies.
+ * A value with no references is a constant, and resolves without any lookup.
+ */
+public final class PropertyTemplate {
+  private static final Object UNPARSED = new Object();
+
+  private final String constant; // non-null if there are no variable references
+  private final String[] literals; // literals[i] precedes variableNames[i]; one extra at the end
+  private final String[] variableNames;
+  private volatile Object parsedConstant = UNPARSED;
+
+  private PropertyTemplate(String constant, String[] literals, String[] variableNames) {
+    this.constant = constant;
+    this.literals = literals;
+    this.variableNames = variableNames;
+  }
+
+  public static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variableNames = new ArrayList<String>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < spec.length()) {
+      char c = spec.charAt(i);
+      if (c == '{') {
+        int end = i + 1;
+        while (end < spec.length() && " {}".indexOf(spec.charAt(end)) < 0) end++;
+        if (end > i + 1 && end < spec.length() && spec.charAt(end) == '}') {
+          literals.add(literal.toString());
+          literal.setLength(0);
+          variableNames.add(spec.substring(i + 1, end));
+          i = end + 1;
+          continue;
+        }
+      }
+      literal.append(c);
+      i++;
+    }
+    if (variableNames.isEmpty()) {
+      return new PropertyTemplate(spec, null, null);
+    }
+    literals.add(literal.toString());
+    return new PropertyTemplate(
+        null, literals.toArray(new String[0]), variableNames.toArray(new String[0]));
+  }
+
+  public boolean isConstant() {
+    return constant != null;
+  }
+
+  public String resolve(Function<String, Object> lookup) {
+    if (constant != null) {
+      return constant;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < variableNames.length; i++) {
+      sb.append(literals[i]);
+      Object v = lookup.apply(variableNames[i]);
+      if (v != null) {
+        sb.append(v.toString());
+      }
+    }
+    return sb.append(literals[variableNames.length]).toString();
+  }
+
+  /*
+   * Parses a constant value once, and returns the cached result on
+   * subsequent calls. Callers must always pass an equivalent parser.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T parseConstant(Function<String, T> parser) {
+    Object parsed = parsedConstant;
+    if (parsed == UNPARSED) {
+      parsed = parser.apply(constant);
+      parsedConstant = parsed;
+    }
+    return (T) parsed;
+  }
+}
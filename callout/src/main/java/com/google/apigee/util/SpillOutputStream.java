@@ -0,0 +1,129 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An OutputStream that holds its content on the heap up to a threshold, and beyond that in a
+ * temporary file. Once closed, the content is read back through a ByteBuffer: the heap buffer
+ * itself, or a read-only mapping of the file. The file is deleted as soon as it is mapped, so
+ * nothing is left on disk; the space is released when the mapping is collected. Call discard() to
+ * remove the file if the content is never read.
+ */
+public class SpillOutputStream extends OutputStream {
+  private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+  private final long threshold;
+  private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+  private Path file;
+  private FileChannel channel;
+  private OutputStream fileOut;
+  private long size;
+
+  public SpillOutputStream(long threshold) {
+    this.threshold = threshold;
+  }
+
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (memory != null && size + 1 > threshold) {
+      spill();
+    }
+    (memory != null ? memory : fileOut).write(b);
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (memory != null && size + len > threshold) {
+      spill();
+    }
+    (memory != null ? memory : fileOut).write(b, off, len);
+    size += len;
+  }
+
+  private void spill() throws IOException {
+    file = Files.createTempFile("wssec-", ".spill");
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    fileOut = new BufferedOutputStream(Channels.newOutputStream(channel), FILE_BUFFER_SIZE);
+    fileOut.write(memory.getBuffer(), 0, memory.size());
+    memory = null;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (fileOut != null) {
+      fileOut.flush();
+    }
+  }
+
+  /* The content, once the stream is closed. A spilled file is mapped, and deleted. */
+  public ByteBuffer toByteBuffer() throws IOException {
+    if (memory != null) {
+      return ByteBuffer.wrap(memory.getBuffer(), 0, memory.size());
+    }
+    if (size > Integer.MAX_VALUE) {
+      discard();
+      throw new IllegalStateException("the message is too large to map");
+    }
+    fileOut.flush();
+    ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    discard();
+    return mapped;
+  }
+
+  public InputStream toInputStream() throws IOException {
+    return new ByteBufferInputStream(toByteBuffer());
+  }
+
+  /* Closes and deletes the file, if there is one. A mapping made before remains valid. */
+  public void discard() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing more to do
+      }
+      channel = null;
+    }
+    if (file != null) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        // eg, on Windows, while the file is mapped
+        file.toFile().deleteOnExit();
+      }
+    }
+  }
+}
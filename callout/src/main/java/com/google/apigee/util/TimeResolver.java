@@ -2,53 +2,170 @@ package com.google.apigee.util;
 
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class TimeResolver {
-    private static final Pattern expiryPattern =
-        Pattern.compile("^([1-9][0-9]*)(s|m|h|d|w|)$", Pattern.CASE_INSENSITIVE);
-    private static final Map<String, Long> timeMultipliers;
-    private static String defaultUnit = "s";
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60L * SECOND;
+    private static final long HOUR = 60L * MINUTE;
+    private static final long DAY = 24L * HOUR;
+    private static final long WEEK = 7L * DAY;
+    private static final Long INVALID = -1L;
 
-    static {
-      Map<String, Long> m1 = new HashMap<String, Long>();
-      m1.put("s", 1L * 1000);
-      m1.put("m", 60L * 1000);
-      m1.put("h", 60L * 60 * 1000);
-      m1.put("d", 60L * 60 * 24 * 1000);
-      m1.put("w", 60L * 60 * 24 * 7 * 1000);
-      timeMultipliers = Collections.unmodifiableMap(m1);
-    }
+    // Expressions usually come from a handful of policy properties; remember
+    // the result for each, up to a limit.
+    private static final int MAX_CACHED = 256;
+    private static final ConcurrentMap<String, Long> cache = new ConcurrentHashMap<String, Long>();
 
     public static ZonedDateTime getExpiryDate(String expiresInString) {
-      Long milliseconds = resolveExpression(expiresInString);
-      Long seconds = milliseconds / 1000;
-      int secondsToAdd = seconds.intValue();
-      if (secondsToAdd <= 0) return null; /* no expiry */
+      long seconds = resolveExpression(expiresInString) / 1000L;
+      if (seconds <= 0 || seconds > Integer.MAX_VALUE) return null; /* no expiry */
       ZonedDateTime zdt = ZonedDateTime.now(ZoneOffset.UTC);
-      zdt = zdt.plusSeconds(secondsToAdd);
+      zdt = zdt.plusSeconds(seconds);
       return zdt;
     }
 
     /*
-     * Convert a simple time duration string, expressed in days, hours, minutes,
-     * or seconds, in a form like 30d, 12d, 8h, 24h, 45m, 30s, into a numeric
-     * quantity in milliseconds.  Eg, "10s" is converted to 10000.
+     * Convert a time duration string into a numeric quantity in milliseconds,
+     * or -1 if the string is not valid. The string may be a simple duration,
+     * expressed in weeks, days, hours, minutes, or seconds, in a form like 30d,
+     * 8h, 45m, 30s; a compound of those, largest unit first, like 1h30m or
+     * 2d12h; or an ISO-8601 duration like PT5M, PT1H30M or P1DT12H. Eg, "10s"
+     * is converted to 10000.
      *
      * Default TimeUnit is s. Eg. the string "30" is treated as 30s.
+     *
+     * The result for each string is cached, so that the Long is not parsed or
+     * allocated again.
      */
     public static Long resolveExpression(String subject) {
-      Matcher m = expiryPattern.matcher(subject);
-      if (m.find()) {
-        String key = m.group(2);
-        if (key.equals("")) key = defaultUnit;
-        return Long.parseLong(m.group(1), 10) * timeMultipliers.get(key);
+      Long milliseconds = cache.get(subject);
+      if (milliseconds == null) {
+        long parsed = parse(subject);
+        milliseconds = (parsed > 0L) ? Long.valueOf(parsed) : INVALID;
+        if (cache.size() < MAX_CACHED) {
+          cache.putIfAbsent(subject, milliseconds);
+        }
+      }
+      return milliseconds;
+    }
+
+    /* Returns the duration in milliseconds, or -1. */
+    private static long parse(String s) {
+      if (s.isEmpty()) return -1L;
+      char first = s.charAt(0);
+      return (first == 'P' || first == 'p') ? parseIso(s) : parseSimple(s);
+    }
+
+    /* 30, 30s, 45m, 1h30m, 2d12h, 1w ... */
+    private static long parseSimple(String s) {
+      int len = s.length();
+      long total = 0L;
+      long previousUnit = Long.MAX_VALUE;
+      int i = 0;
+      try {
+        while (i < len) {
+          int start = i;
+          if (s.charAt(i) == '0') return -1L; // no leading zeros
+          long n = 0L;
+          while (i < len && isDigit(s.charAt(i))) {
+            n = Math.addExact(Math.multiplyExact(n, 10L), s.charAt(i++) - '0');
+          }
+          if (i == start) return -1L;
+          long unit;
+          if (i == len) {
+            // a bare number means seconds, but only on its own
+            if (start != 0) return -1L;
+            unit = SECOND;
+          } else {
+            unit = unitOf(s.charAt(i++));
+            // each unit at most once, largest first
+            if (unit < 0 || unit >= previousUnit) return -1L;
+          }
+          previousUnit = unit;
+          total = Math.addExact(total, Math.multiplyExact(n, unit));
+        }
+      } catch (ArithmeticException e) {
+        return -1L;
+      }
+      return total;
+    }
+
+    /* PT5M, PT1H30M, P1DT12H, P2W ... */
+    private static long parseIso(String s) {
+      int len = s.length();
+      long total = 0L;
+      long previousUnit = Long.MAX_VALUE;
+      boolean inTime = false;
+      boolean any = false;
+      boolean anyAfterT = false;
+      int i = 1;
+      try {
+        while (i < len) {
+          char c = s.charAt(i);
+          if (c == 'T' || c == 't') {
+            if (inTime) return -1L;
+            inTime = true;
+            previousUnit = DAY;
+            i++;
+            continue;
+          }
+          int start = i;
+          long n = 0L;
+          while (i < len && isDigit(s.charAt(i))) {
+            n = Math.addExact(Math.multiplyExact(n, 10L), s.charAt(i++) - '0');
+          }
+          if (i == start || i == len) return -1L;
+          long unit = isoUnitOf(s.charAt(i++), inTime);
+          if (unit < 0 || unit >= previousUnit) return -1L;
+          previousUnit = unit;
+          any = true;
+          anyAfterT |= inTime;
+          total = Math.addExact(total, Math.multiplyExact(n, unit));
+        }
+      } catch (ArithmeticException e) {
+        return -1L;
+      }
+      return (any && (anyAfterT || !inTime)) ? total : -1L;
+    }
+
+    private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+
+    private static long unitOf(char c) {
+      switch (Character.toLowerCase(c)) {
+        case 's':
+          return SECOND;
+        case 'm':
+          return MINUTE;
+        case 'h':
+          return HOUR;
+        case 'd':
+          return DAY;
+        case 'w':
+          return WEEK;
+        default:
+          return -1L;
+      }
+    }
+
+    /* In ISO-8601, M is months before the T and minutes after it; months are not supported. */
+    private static long isoUnitOf(char c, boolean inTime) {
+      switch (Character.toUpperCase(c)) {
+        case 'W':
+          return inTime ? -1L : WEEK;
+        case 'D':
+          return inTime ? -1L : DAY;
+        case 'H':
+          return inTime ? HOUR : -1L;
+        case 'M':
+          return inTime ? MINUTE : -1L;
+        case 'S':
+          return inTime ? SECOND : -1L;
+        default:
+          return -1L;
       }
-      return -1L;
     }
   }
@@ -0,0 +1,80 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ISO-8601 timestamps with one-second resolution, eg 2024-06-06T00:07:13Z, shared across threads.
+ * For each offset from now, the formatted string is cached and replaced at most once per second,
+ * with a compare-and-set on the epoch second.
+ */
+public class TimestampCache {
+  private static final int MAX_OFFSETS = 64;
+
+  private static final class Entry {
+    final long epochSecond;
+    final String formatted;
+
+    Entry(long epochSecond, String formatted) {
+      this.epochSecond = epochSecond;
+      this.formatted = formatted;
+    }
+  }
+
+  private static final ConcurrentMap<Integer, AtomicReference<Entry>> entries =
+      new ConcurrentHashMap<Integer, AtomicReference<Entry>>();
+
+  public static long currentEpochSecond() {
+    return System.currentTimeMillis() / 1000L;
+  }
+
+  /*
+   * Returns the formatted time at epochSecond + offsetSeconds. Callers that
+   * need more than one timestamp for the same instant should read
+   * currentEpochSecond() once and pass it to each call.
+   */
+  public static String format(long epochSecond, int offsetSeconds) {
+    AtomicReference<Entry> ref = entries.get(offsetSeconds);
+    if (ref == null) {
+      if (entries.size() >= MAX_OFFSETS) {
+        return formatUncached(epochSecond + offsetSeconds);
+      }
+      ref = new AtomicReference<Entry>(new Entry(Long.MIN_VALUE, null));
+      AtomicReference<Entry> existing = entries.putIfAbsent(offsetSeconds, ref);
+      if (existing != null) ref = existing;
+    }
+    Entry entry = ref.get();
+    if (entry.epochSecond == epochSecond) {
+      return entry.formatted;
+    }
+    Entry updated = new Entry(epochSecond, formatUncached(epochSecond + offsetSeconds));
+    // Replace only a stale entry; if a thread with a later clock reading
+    // has already updated it, leave that one.
+    if (entry.epochSecond < epochSecond) {
+      ref.compareAndSet(entry, updated);
+    }
+    return updated.formatted;
+  }
+
+  private static String formatUncached(long epochSecond) {
+    return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(epochSecond));
+  }
+}
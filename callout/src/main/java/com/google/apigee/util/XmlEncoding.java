@@ -0,0 +1,235 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * The character encoding of an XML document, as given by its byte order mark, its XML
+ * declaration, or the charset of its Content-Type, in that order. Without any of those, it is
+ * UTF-8. The callouts write their output in the same encoding, so that it still agrees with the
+ * Content-Type, and so that the bytes they copy through need not be decoded.
+ */
+public final class XmlEncoding {
+  public static final XmlEncoding UTF_8 = new XmlEncoding(StandardCharsets.UTF_8, false);
+
+  private static final int PREFIX_LENGTH = 256;
+
+  private final Charset charset;
+  private final boolean inDocument; // the parser finds it for itself, from a BOM or declaration
+
+  private XmlEncoding(Charset charset, boolean inDocument) {
+    this.charset = charset;
+    this.inDocument = inDocument;
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  public boolean isUtf8() {
+    return charset.equals(StandardCharsets.UTF_8);
+  }
+
+  private boolean isUtf16() {
+    return charset.name().startsWith("UTF-16");
+  }
+
+  /* true for single-byte encodings that agree with ASCII, such as ISO-8859-1 and windows-1252 */
+  public boolean isAsciiCompatible() {
+    if (isUtf8()) {
+      return true;
+    }
+    if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+      return false;
+    }
+    byte[] probe = "<?xml version='1.0'?>:=\"".getBytes(charset);
+    return new String(probe, StandardCharsets.US_ASCII).equals("<?xml version='1.0'?>:=\"");
+  }
+
+  /* The encoding to give the parser, or null if the document itself says. */
+  public String getParserEncoding() {
+    return inDocument ? null : charset.name();
+  }
+
+  /* The name to write in an XML declaration, or null if the output needs none. */
+  public String getDeclaredName() {
+    return (isUtf8() || isUtf16()) ? null : charset.name();
+  }
+
+  /* The charset in which to write the output. UTF-16 is written big-endian, after a BOM. */
+  public Charset getOutputCharset() {
+    return isUtf16() ? StandardCharsets.UTF_16 : charset;
+  }
+
+  /*
+   * Encodes a fragment of markup for the body of the output, ie without a BOM.
+   * Characters that the encoding cannot represent are written as character
+   * references, so the fragment must not put them in names or comments.
+   */
+  public byte[] encode(String markup) {
+    if (isUtf8()) {
+      return markup.getBytes(StandardCharsets.UTF_8);
+    }
+    if (isUtf16()) {
+      return markup.getBytes(StandardCharsets.UTF_16BE);
+    }
+    CharsetEncoder encoder = charset.newEncoder();
+    ByteBuffer out = ByteBuffer.allocate(markup.length() + 16);
+    CharBuffer in = CharBuffer.wrap(markup);
+    try {
+      while (true) {
+        CoderResult result = encoder.encode(in, out, true);
+        if (result.isUnmappable()) {
+          int codePoint = Character.codePointAt(markup, in.position());
+          in.position(in.position() + result.length());
+          byte[] reference = ("&#" + codePoint + ";").getBytes(StandardCharsets.US_ASCII);
+          out = ensure(out, reference.length);
+          out.put(reference);
+        } else if (result.isOverflow()) {
+          out = ensure(out, out.capacity());
+        } else if (result.isUnderflow()) {
+          break;
+        } else {
+          result.throwException();
+        }
+      }
+    } catch (CharacterCodingException e) {
+      throw new IllegalStateException("cannot encode for " + charset.name(), e);
+    }
+    byte[] bytes = new byte[out.position()];
+    out.flip();
+    out.get(bytes);
+    return bytes;
+  }
+
+  private static ByteBuffer ensure(ByteBuffer buffer, int more) {
+    if (buffer.remaining() >= more) {
+      return buffer;
+    }
+    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + Math.max(more, 64));
+    buffer.flip();
+    return larger.put(buffer);
+  }
+
+  /* Detects from the start of a stream, which must support mark, and is left where it was. */
+  public static XmlEncoding detect(InputStream in, String contentType) throws IOException {
+    in.mark(PREFIX_LENGTH);
+    byte[] prefix = new byte[PREFIX_LENGTH];
+    int n = 0;
+    int count;
+    while (n < prefix.length && (count = in.read(prefix, n, prefix.length - n)) > 0) {
+      n += count;
+    }
+    in.reset();
+    return detect(prefix, n, contentType);
+  }
+
+  public static XmlEncoding detect(byte[] content, int length, String contentType) {
+    // the byte order mark
+    if (length >= 3
+        && (content[0] & 0xff) == 0xEF
+        && (content[1] & 0xff) == 0xBB
+        && (content[2] & 0xff) == 0xBF) {
+      return new XmlEncoding(StandardCharsets.UTF_8, true);
+    }
+    if (length >= 2
+        && (((content[0] & 0xff) == 0xFE && (content[1] & 0xff) == 0xFF)
+            || ((content[0] & 0xff) == 0xFF && (content[1] & 0xff) == 0xFE))) {
+      return new XmlEncoding(StandardCharsets.UTF_16, true);
+    }
+    // a UTF-16 declaration, without a BOM
+    if (length >= 4 && content[0] == 0 && content[1] == '<' && content[2] == 0) {
+      return new XmlEncoding(StandardCharsets.UTF_16BE, true);
+    }
+    if (length >= 4 && content[0] == '<' && content[1] == 0 && content[3] == 0) {
+      return new XmlEncoding(StandardCharsets.UTF_16LE, true);
+    }
+    // the XML declaration
+    String prefix = new String(content, 0, length, StandardCharsets.ISO_8859_1);
+    if (prefix.startsWith("<?xml")) {
+      int end = prefix.indexOf("?>");
+      String declared = pseudoAttribute(prefix.substring(0, (end < 0) ? length : end), "encoding");
+      if (declared != null) {
+        Charset charset = forName(declared);
+        // the parser reports an encoding it does not know; leave that to it
+        return new XmlEncoding((charset != null) ? charset : StandardCharsets.UTF_8, true);
+      }
+    }
+    // the Content-Type
+    Charset charset = forName(contentTypeCharset(contentType));
+    return (charset == null) ? UTF_8 : new XmlEncoding(charset, false);
+  }
+
+  private static Charset forName(String name) {
+    if (name == null) {
+      return null;
+    }
+    try {
+      return Charset.forName(name);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static String pseudoAttribute(String declaration, String name) {
+    int ix = declaration.indexOf(name);
+    if (ix < 0) {
+      return null;
+    }
+    ix = declaration.indexOf('=', ix);
+    if (ix < 0) {
+      return null;
+    }
+    String rest = declaration.substring(ix + 1).trim();
+    if (rest.isEmpty() || (rest.charAt(0) != '"' && rest.charAt(0) != '\'')) {
+      return null;
+    }
+    int end = rest.indexOf(rest.charAt(0), 1);
+    return (end < 0) ? null : rest.substring(1, end).trim();
+  }
+
+  private static String contentTypeCharset(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    for (String parameter : contentType.split(";")) {
+      int eq = parameter.indexOf('=');
+      if (eq > 0 && parameter.substring(0, eq).trim().toLowerCase(Locale.ROOT).equals("charset")) {
+        String value = parameter.substring(eq + 1).trim();
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return charset.name();
+  }
+}
@@ -17,13 +17,23 @@ package com.google.apigee.util;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -34,27 +44,85 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 public class XmlUtils {
+  private static final XMLInputFactory inputFactory;
+  private static final XMLOutputFactory outputFactory;
 
-  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    // prevent DTD entities from being resolved.
-    builder.setEntityResolver(
-        new EntityResolver() {
-          @Override
-          public InputSource resolveEntity(String publicId, String systemId)
-              throws SAXException, IOException {
-            return new InputSource(new StringReader(""));
-          }
-        });
+  static {
+    // the StAX factories are thread safe once configured. As with the
+    // DocumentBuilder, do not process DTDs or resolve external entities.
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    outputFactory = XMLOutputFactory.newInstance();
+  }
+
+  // Prevent DTD entities from being resolved.
+  private static final EntityResolver emptyEntityResolver =
+      new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId)
+            throws SAXException, IOException {
+          return new InputSource(new StringReader(""));
+        }
+      };
+
+  private static DocumentBuilderFactory builderFactory;
+  private static TransformerFactory transformerFactory;
+
+  // DocumentBuilder and Transformer are not thread safe, but they can be
+  // reused serially. Keep one of each per thread, and reset between uses.
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+  private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+
+  private static synchronized DocumentBuilder newBuilder() throws ParserConfigurationException {
+    if (builderFactory == null) {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      builderFactory = factory;
+    }
+    return builderFactory.newDocumentBuilder();
+  }
+
+  private static synchronized Transformer newTransformer()
+      throws TransformerConfigurationException {
+    if (transformerFactory == null) {
+      transformerFactory = TransformerFactory.newInstance();
+    }
+    return transformerFactory.newTransformer();
+  }
 
+  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      builder = newBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    // reset() clears the EntityResolver, so set it each time.
+    builder.setEntityResolver(emptyEntityResolver);
     return builder;
   }
 
+  /*
+   * Returns an identity Transformer that omits the XML declaration. The
+   * Transformer is cached per thread; do not hold onto it.
+   */
+  public static Transformer getTransformer() throws TransformerConfigurationException {
+    Transformer transformer = transformers.get();
+    if (transformer == null) {
+      transformer = newTransformer();
+      transformers.set(transformer);
+    } else {
+      transformer.reset();
+    }
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    return transformer;
+  }
+
   public static Document parseXml(InputStream in)
       throws IOException, SAXException, ParserConfigurationException {
     DocumentBuilder builder = getBuilder();
@@ -63,6 +131,18 @@ public class XmlUtils {
     return ret;
   }
 
+  /* encoding is null to let the parser detect it, from a BOM or the XML declaration */
+  public static Document parseXml(InputStream in, String encoding)
+      throws IOException, SAXException, ParserConfigurationException {
+    if (encoding == null) {
+      return parseXml(in);
+    }
+    DocumentBuilder builder = getBuilder();
+    InputSource is = new InputSource(new BufferedInputStream(in));
+    is.setEncoding(encoding);
+    return builder.parse(is);
+  }
+
   public static Document parseXml(String s)
       throws IOException, SAXException, ParserConfigurationException {
     DocumentBuilder builder = getBuilder();
@@ -80,11 +160,77 @@ public class XmlUtils {
     DOMSource domSource = new DOMSource(doc);
     StringWriter writer = new StringWriter();
     StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    Transformer transformer = getTransformer();
     if (pretty) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
     transformer.transform(domSource, result);
     return writer.toString();
   }
+
+  public static void write(Document doc, OutputStream out) throws TransformerException {
+    getTransformer().transform(new DOMSource(doc), new StreamResult(out));
+  }
+
+  /*
+   * Writes the document, without a declaration, in the output charset of the
+   * encoding. The Transformer writes character references for what a single
+   * byte encoding cannot represent, but it does not encode multi-byte
+   * encodings other than UTF-8 properly; those go through a Writer.
+   */
+  public static void write(Document doc, OutputStream out, XmlEncoding encoding)
+      throws TransformerException, IOException {
+    if (encoding.isUtf8()) {
+      write(doc, out);
+    } else if (encoding.isAsciiCompatible()) {
+      Transformer transformer = getTransformer();
+      transformer.setOutputProperty(OutputKeys.ENCODING, encoding.getCharset().name());
+      transformer.transform(new DOMSource(doc), new StreamResult(out));
+    } else {
+      Writer writer = new OutputStreamWriter(out, encoding.getOutputCharset());
+      getTransformer().transform(new DOMSource(doc), new StreamResult(writer));
+      writer.flush();
+    }
+  }
+
+  public static XMLEventReader newEventReader(InputStream in) throws XMLStreamException {
+    return inputFactory.createXMLEventReader(new BufferedInputStream(in));
+  }
+
+  public static XMLEventReader newEventReader(InputStream in, String encoding)
+      throws XMLStreamException {
+    if (encoding == null) {
+      return newEventReader(in);
+    }
+    return inputFactory.createXMLEventReader(new BufferedInputStream(in), encoding);
+  }
+
+  public static XMLEventReader newEventReader(String s) throws XMLStreamException {
+    return inputFactory.createXMLEventReader(new StringReader(s));
+  }
+
+  public static XMLEventWriter newEventWriter(OutputStream out) throws XMLStreamException {
+    return outputFactory.createXMLEventWriter(out, "UTF-8");
+  }
+
+  public static XMLEventWriter newEventWriter(OutputStream out, Charset charset)
+      throws XMLStreamException {
+    return outputFactory.createXMLEventWriter(out, charset.name());
+  }
+
+  public static String escapeText(String s) {
+    StringBuilder sb = null;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      String replacement =
+          (c == '&') ? "&amp;" : (c == '<') ? "&lt;" : (c == '>') ? "&gt;" : null;
+      if (replacement != null) {
+        if (sb == null) {
+          sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+        }
+        sb.append(replacement);
+      } else if (sb != null) {
+        sb.append(c);
+      }
+    }
+    return (sb == null) ? s : sb.toString();
+  }
 }
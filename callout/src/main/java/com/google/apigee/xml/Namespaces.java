@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
@@ -54,7 +55,7 @@ public class Namespaces {
     map1.put(WSSE, "wsse");
     map1.put(WSSE11, "wsse11");
     map1.put(XMLDSIG, "ds");
-    defaultPrefixes = Collections.synchronizedMap(map1);
+    defaultPrefixes = Collections.unmodifiableMap(map1);
   }
 
   static {
@@ -64,6 +65,24 @@ public class Namespaces {
     soapNamespaces = Collections.unmodifiableSet(set1);
   }
 
+  /*
+   * Choose a prefix for a namespace that is not yet declared: the default
+   * prefix if it is not already bound, otherwise the first free one of ns1,
+   * ns2, and so on. isBound reports the prefixes in use in the message being
+   * processed, so there is no state shared between requests.
+   */
+  public static String newPrefix(String namespaceURI, Predicate<String> isBound) {
+    String prefix = defaultPrefixes.get(namespaceURI);
+    if (prefix != null && !isBound.test(prefix)) {
+      return prefix;
+    }
+    int n = 1;
+    do {
+      prefix = "ns" + n++;
+    } while (isBound.test(prefix));
+    return prefix;
+  }
+
   public static Map<String, String> getExistingNamespaces(Element element) {
     Map<String, String> knownNamespaces = new HashMap<String, String>();
     NamedNodeMap attributes = element.getAttributes();
@@ -0,0 +1,434 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import com.google.apigee.util.TimeResolver;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.ByteArrayInputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Replays a corpus of envelopes through one shared {@link Inject}, from many threads at once, as
+ * the Apigee runtime does with the request threads that share a policy. Each thread has its own
+ * message context, as each request does. After a warm-up, it records the latency of each call in a
+ * histogram per thread, and reports the percentiles, the throughput, and the GC pauses:
+ *
+ * <pre>
+ * mvn test -Dtest=TestLoadDriver -Dload.args="--threads 32 --duration 60s --engine splice"
+ * </pre>
+ *
+ * <p>TestLoadDriver skips the run unless load.args is set, so a plain mvn test does not drive
+ * load. The report is written to the TestNG reporter output.
+ *
+ * <p>The corpus is the envelopes in sample-data, or in the directory named with --corpus, plus
+ * generated envelopes of 1KB, 16KB and 256KB.
+ */
+final class LoadDriver {
+  private static final String USAGE =
+      "usage: LoadDriver [--threads N] [--duration 30s] [--warm-up 10s] [--corpus DIR]\n"
+          + "    [--engine DOM|STAX|SPLICE] [--password-encoding TEXT|DIGEST] [--expiry 5m]";
+
+  private static final int[] GENERATED_SIZES = {1024, 16 * 1024, 256 * 1024};
+
+  private LoadDriver() {}
+
+  public static void main(String[] args) throws Exception {
+    Report report = run(args);
+    if (report == null) {
+      System.exit(2);
+    }
+    System.err.println(report);
+    if (report.errors > 0) {
+      System.exit(1);
+    }
+  }
+
+  /* Returns null for a usage error. */
+  static Report run(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    if (options == null) {
+      System.err.println(USAGE);
+      return null;
+    }
+    int threads =
+        options.containsKey("threads")
+            ? parseThreads(options.get("threads"))
+            : Runtime.getRuntime().availableProcessors();
+    long duration = TimeResolver.resolveExpression(options.getOrDefault("duration", "30s"));
+    String warmUpOption = options.getOrDefault("warm-up", "10s");
+    long warmUp = warmUpOption.equals("0") ? 0L : TimeResolver.resolveExpression(warmUpOption);
+    if (threads < 1 || duration <= 0L || warmUp < 0L) {
+      System.err.println(USAGE);
+      return null;
+    }
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("engine", options.getOrDefault("engine", "DOM"));
+    props.put("password-encoding", options.getOrDefault("password-encoding", "DIGEST"));
+    if (options.containsKey("expiry")) {
+      props.put("expiry", options.get("expiry"));
+    }
+    List<byte[]> corpus = corpus(Paths.get(options.getOrDefault("corpus", "../sample-data")));
+    return drive(new Inject(props), corpus, threads, warmUp, duration);
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i += 2) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        return null;
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    return options;
+  }
+
+  private static int parseThreads(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static List<byte[]> corpus(Path dir) throws Exception {
+    List<byte[]> corpus = new ArrayList<byte[]>();
+    if (Files.isDirectory(dir)) {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.xml")) {
+        for (Path file : files) {
+          corpus.add(Files.readAllBytes(file));
+        }
+      }
+    }
+    for (int size : GENERATED_SIZES) {
+      corpus.add(generate(size));
+    }
+    return corpus;
+  }
+
+  private static byte[] generate(int targetSize) {
+    StringBuilder sb =
+        new StringBuilder(targetSize + 64)
+            .append("<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>")
+            .append("<soapenv:Body><ns1:items xmlns:ns1='http://ws.example.com/'>");
+    String tail = "</ns1:items></soapenv:Body></soapenv:Envelope>";
+    int i = 0;
+    while (sb.length() + tail.length() < targetSize) {
+      sb.append("<ns1:item id='").append(i++).append("'>The quick brown fox</ns1:item>");
+    }
+    return sb.append(tail).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Report drive(
+      Inject callout, List<byte[]> corpus, int threads, long warmUpMillis, long durationMillis)
+      throws Exception {
+    long measureStart = System.nanoTime() + warmUpMillis * 1000000L;
+    long measureEnd = measureStart + durationMillis * 1000000L;
+    GcPauses gcPauses =
+        new GcPauses(ManagementFactory.getRuntimeMXBean().getUptime() + warmUpMillis);
+    CountDownLatch finished = new CountDownLatch(threads);
+    Worker[] workers = new Worker[threads];
+
+    gcPauses.start();
+    try {
+      for (int t = 0; t < threads; t++) {
+        // threads start at different points in the corpus
+        workers[t] = new Worker(callout, corpus, t % corpus.size(), measureStart, measureEnd);
+        Worker worker = workers[t];
+        Thread thread =
+            new Thread(
+                () -> {
+                  try {
+                    worker.run();
+                  } finally {
+                    finished.countDown();
+                  }
+                },
+                "load-driver-" + t);
+        thread.setDaemon(true);
+        thread.start();
+      }
+      finished.await();
+    } finally {
+      gcPauses.stop();
+    }
+
+    Histogram latency = new Histogram();
+    long errors = 0L;
+    long bytes = 0L;
+    for (Worker worker : workers) {
+      latency.add(worker.latency);
+      errors += worker.errors;
+      bytes += worker.bytes;
+    }
+    return new Report(threads, durationMillis, latency, errors, bytes, gcPauses);
+  }
+
+  /* One request thread, with a message context of its own. */
+  private static final class Worker implements Runnable {
+    private final Inject callout;
+    private final List<byte[]> corpus;
+    private final long measureStart;
+    private final long measureEnd;
+    private int next;
+
+    final Histogram latency = new Histogram();
+    long errors;
+    long bytes;
+
+    Worker(Inject callout, List<byte[]> corpus, int first, long measureStart, long measureEnd) {
+      this.callout = callout;
+      this.corpus = corpus;
+      this.next = first;
+      this.measureStart = measureStart;
+      this.measureEnd = measureEnd;
+    }
+
+    @Override
+    public void run() {
+      FakeMessage message = new FakeMessage();
+      FakeMessageContext msgCtxt = new FakeMessageContext(message, false);
+      FakeExecutionContext exeCtxt = new FakeExecutionContext();
+      long start;
+      while ((start = System.nanoTime()) < measureEnd) {
+        byte[] content = corpus.get(next);
+        next = (next + 1) % corpus.size();
+        message.setContent(new ByteArrayInputStream(content));
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        long end = System.nanoTime();
+        if (start >= measureStart) {
+          latency.record(end - start);
+          bytes += content.length;
+          if (result != ExecutionResult.SUCCESS) {
+            errors++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Latencies in nanoseconds, in buckets of about 3% width: 32 buckets for each power of two. Not
+   * thread safe; each thread records into its own, and they are added together at the end.
+   */
+  static final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+      long value = Math.max(nanos, 0L);
+      counts[bucketOf(value)]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+    void add(Histogram other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      total += other.total;
+      max = Math.max(max, other.max);
+    }
+
+    long count() {
+      return total;
+    }
+
+    long max() {
+      return max;
+    }
+
+    /* Returns the upper bound of the bucket that holds the given quantile, in nanoseconds. */
+    long percentile(double quantile) {
+      if (total == 0L) {
+        return 0L;
+      }
+      long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+      long seen = 0L;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(i), max);
+        }
+      }
+      return max;
+    }
+
+    private static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBoundOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+  }
+
+  /**
+   * Collects the GC pauses reported by the collector MXBeans while the load runs. The cycles of
+   * concurrent collectors are not pauses, and are not counted.
+   */
+  static final class GcPauses implements NotificationListener {
+    private final long startUptime; // pauses before this, during the warm-up, are not counted
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+    GcPauses(long startUptime) {
+      this.startUptime = startUptime;
+    }
+
+    void start() {
+      for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if (bean instanceof NotificationEmitter) {
+          NotificationEmitter emitter = (NotificationEmitter) bean;
+          emitter.addNotificationListener(this, null, null);
+          emitters.add(emitter);
+        }
+      }
+    }
+
+    void stop() {
+      for (NotificationEmitter emitter : emitters) {
+        try {
+          emitter.removeNotificationListener(this);
+        } catch (Exception e) {
+          // already removed
+        }
+      }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+          notification.getType())) {
+        return;
+      }
+      GarbageCollectionNotificationInfo info =
+          GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+      if (info.getGcName().contains("Concurrent")
+          || info.getGcAction().contains("concurrent")
+          || info.getGcName().contains("Cycles")) {
+        return;
+      }
+      if (info.getGcInfo().getStartTime() < startUptime) {
+        return;
+      }
+      long duration = info.getGcInfo().getDuration();
+      count.incrementAndGet();
+      totalMillis.addAndGet(duration);
+      maxMillis.accumulateAndGet(duration, Math::max);
+    }
+
+    long count() {
+      return count.get();
+    }
+
+    long totalMillis() {
+      return totalMillis.get();
+    }
+
+    long maxMillis() {
+      return maxMillis.get();
+    }
+  }
+
+  static final class Report {
+    final int threads;
+    final long durationMillis;
+    final Histogram latency;
+    final long errors;
+    final long bytes;
+    final GcPauses gcPauses;
+
+    Report(
+        int threads,
+        long durationMillis,
+        Histogram latency,
+        long errors,
+        long bytes,
+        GcPauses gcPauses) {
+      this.threads = threads;
+      this.durationMillis = durationMillis;
+      this.latency = latency;
+      this.errors = errors;
+      this.bytes = bytes;
+      this.gcPauses = gcPauses;
+    }
+
+    double callsPerSecond() {
+      return latency.count() * 1000.0 / durationMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ROOT,
+          "%d threads, %d calls, %d errors in %.1f s: %.0f calls/s, %.1f MB/s\n"
+              + "latency us: p50 %.1f, p99 %.1f, p999 %.1f, max %.1f\n"
+              + "GC pauses: %d, total %d ms, max %d ms",
+          threads,
+          latency.count(),
+          errors,
+          durationMillis / 1000.0,
+          callsPerSecond(),
+          bytes / (1024.0 * 1024.0) * 1000.0 / durationMillis,
+          latency.percentile(0.50) / 1000.0,
+          latency.percentile(0.99) / 1000.0,
+          latency.percentile(0.999) / 1000.0,
+          latency.max() / 1000.0,
+          gcPauses.count(),
+          gcPauses.totalMillis(),
+          gcPauses.maxMillis());
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class TestBatchInject {
+  private final List<Path> temporaries = new ArrayList<Path>();
+
+  private Path tempDirectory(String prefix) throws Exception {
+    Path dir = Files.createTempDirectory(prefix);
+    temporaries.add(dir);
+    return dir;
+  }
+
+  private Path tempFile(String prefix, String suffix) throws Exception {
+    Path file = Files.createTempFile(prefix, suffix);
+    temporaries.add(file);
+    return file;
+  }
+
+  @AfterMethod
+  public void deleteTemporaries() throws Exception {
+    for (Path path : temporaries) {
+      try (Stream<Path> paths = Files.walk(path)) {
+        Iterable<Path> deepestFirst = paths.sorted(Comparator.reverseOrder())::iterator;
+        for (Path p : deepestFirst) {
+          Files.delete(p);
+        }
+      }
+    }
+    temporaries.clear();
+  }
+  private static String envelope(int i) {
+    return "<soapenv:Envelope xmlns:ns1='http://ws.example.com/'\n"
+        + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+        + "  <soapenv:Body>\n"
+        + "    <ns1:sumResponse>\n"
+        + "      <ns1:return>"
+        + i
+        + "</ns1:return>\n"
+        + "    </ns1:sumResponse>\n"
+        + "  </soapenv:Body>\n"
+        + "</soapenv:Envelope>";
+  }
+
+  private static String[] args(Path input, Path output, String engine) {
+    return new String[] {
+      "--input", input.toString(),
+      "--output", output.toString(),
+      "--username", "emil@gaffanon.com",
+      "--password", "Albatross1",
+      "--password-encoding", "DIGEST",
+      "--expiry", "5m",
+      "--engine", engine,
+      "--threads", "3"
+    };
+  }
+
+  @Test
+  public void directory() throws Exception {
+    for (String engine : new String[] {"STAX", "SPLICE", "DOM"}) {
+      Path input = tempDirectory("batch-in");
+      Path output = tempDirectory("batch-out");
+      Files.createDirectories(input.resolve("nested"));
+      for (int i = 0; i < 20; i++) {
+        Path file = input.resolve(((i % 2 == 0) ? "" : "nested/") + "envelope-" + i + ".xml");
+        Files.write(file, envelope(i).getBytes(StandardCharsets.UTF_8));
+      }
+      Assert.assertEquals(BatchInject.run(args(input, output, engine)), 0, engine);
+      for (int i = 0; i < 20; i++) {
+        Path file = output.resolve(((i % 2 == 0) ? "" : "nested/") + "envelope-" + i + ".xml");
+        String injected = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        Assert.assertTrue(injected.contains(":UsernameToken "), engine + " " + file);
+        Assert.assertTrue(injected.contains(":Expires>"), engine + " " + file);
+        Assert.assertTrue(injected.contains("<ns1:return>" + i + "</ns1:return>"), engine);
+      }
+    }
+  }
+
+  @Test
+  public void jsonLines() throws Exception {
+    Path input = tempFile("batch-in", ".jsonl");
+    Path output = tempFile("batch-out", ".jsonl");
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      lines.add(BatchInject.JsonStrings.encode(envelope(i)));
+    }
+    lines.set(50, "\"<not-soap/>\"");
+    Files.write(input, lines, StandardCharsets.UTF_8);
+
+    // the line fails, and is reported; the lines after it stay in step
+    Assert.assertEquals(BatchInject.run(args(input, output, "SPLICE")), 1);
+    List<String> results = Files.readAllLines(output, StandardCharsets.UTF_8);
+    Assert.assertEquals(results.size(), 100);
+    Assert.assertEquals(results.get(50), "null");
+    for (int i = 0; i < 100; i++) {
+      if (i == 50) continue;
+      String injected = BatchInject.JsonStrings.decode(results.get(i));
+      Assert.assertTrue(injected.contains(":UsernameToken "), "line " + i);
+      // in the same order as the input
+      Assert.assertTrue(injected.contains("<ns1:return>" + i + "</ns1:return>"), "line " + i);
+    }
+  }
+
+  @Test
+  public void failedFileIsNotWritten() throws Exception {
+    Path input = tempDirectory("batch-in");
+    Path output = tempDirectory("batch-out");
+    Files.write(input.resolve("good.xml"), envelope(1).getBytes(StandardCharsets.UTF_8));
+    Files.write(input.resolve("bad.xml"), "<not-soap/>".getBytes(StandardCharsets.UTF_8));
+    for (String engine : new String[] {"STAX", "SPLICE", "DOM"}) {
+      Assert.assertEquals(BatchInject.run(args(input, output, engine)), 1, engine);
+      Assert.assertTrue(Files.exists(output.resolve("good.xml")), engine);
+      Assert.assertFalse(Files.exists(output.resolve("bad.xml")), engine);
+    }
+  }
+
+  @Test
+  public void jsonStrings() {
+    String s = "<a b=\"1\">\n\t\\ é \u0001</a>";
+    Assert.assertEquals(BatchInject.JsonStrings.decode(BatchInject.JsonStrings.encode(s)), s);
+    Assert.assertEquals(BatchInject.JsonStrings.decode("\"\\u00e9\\/\""), "é/");
+  }
+
+  @Test
+  public void usage() throws Exception {
+    Assert.assertEquals(BatchInject.run(new String[] {"--input"}), 2);
+  }
+
+  @Test
+  public void invalidOptions() throws Exception {
+    Path input = tempDirectory("batch-in");
+    Path output = tempDirectory("batch-out");
+    String[][] invalid = {
+      {"--engine", "SAX"},
+      {"--password-encoding", "SHA256"},
+      {"--threads", "0"},
+      {"--threads", "four"},
+      {"--expiry", "soon"}
+    };
+    for (String[] option : invalid) {
+      String[] args = args(input, output, "STAX");
+      for (int i = 0; i < args.length; i += 2) {
+        if (args[i].equals(option[0])) {
+          args[i + 1] = option[1];
+        }
+      }
+      Assert.assertEquals(BatchInject.run(args), 2, option[0] + " " + option[1]);
+    }
+  }
+
+  @Test
+  public void withoutApigeeRuntime() throws Exception {
+    // load the tool with only the callout classes, and no com.apigee classes
+    URL classes = BatchInject.class.getProtectionDomain().getCodeSource().getLocation();
+    try (URLClassLoader loader = new URLClassLoader(new URL[] {classes}, null)) {
+      Class<?> batch = loader.loadClass(BatchInject.class.getName());
+      Assert.assertNotSame(batch, BatchInject.class);
+      try {
+        loader.loadClass("com.apigee.flow.message.MessageContext");
+        throw new SkipException("the Apigee classes are on the same classpath entry");
+      } catch (ClassNotFoundException expected) {
+      }
+      Path input = tempDirectory("batch-in");
+      Path output = tempDirectory("batch-out");
+      Files.write(input.resolve("envelope.xml"), envelope(7).getBytes(StandardCharsets.UTF_8));
+      Method run = batch.getDeclaredMethod("run", String[].class);
+      run.setAccessible(true);
+      Assert.assertEquals(run.invoke(null, (Object) args(input, output, "STAX")), 0);
+      Assert.assertTrue(Files.exists(output.resolve("envelope.xml")));
+    }
+  }
+}
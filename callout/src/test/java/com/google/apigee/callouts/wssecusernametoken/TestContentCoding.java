@@ -0,0 +1,88 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestContentCoding {
+  private static final byte[] TEXT =
+      "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'><soap:Body/>"
+          .getBytes(StandardCharsets.UTF_8);
+
+  static byte[] encode(ContentCoding coding, byte[] content) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = coding.encode(compressed)) {
+      out.write(content);
+    }
+    return compressed.toByteArray();
+  }
+
+  static byte[] decode(ContentCoding coding, byte[] content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = coding.decode(new ByteArrayInputStream(content))) {
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void forHeader() {
+    Assert.assertNull(ContentCoding.forHeader(null));
+    Assert.assertNull(ContentCoding.forHeader("identity"));
+    Assert.assertEquals(ContentCoding.forHeader("GZip"), ContentCoding.GZIP);
+    Assert.assertEquals(ContentCoding.forHeader("x-gzip"), ContentCoding.GZIP);
+    Assert.assertEquals(ContentCoding.forHeader(" deflate "), ContentCoding.DEFLATE);
+    try {
+      ContentCoding.forHeader("br");
+      Assert.fail("accepted br");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "unsupported Content-Encoding: br");
+    }
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    for (ContentCoding coding : ContentCoding.values()) {
+      byte[] compressed = encode(coding, TEXT);
+      Assert.assertNotEquals(compressed, TEXT, coding.name());
+      Assert.assertEquals(decode(coding, compressed), TEXT, coding.name());
+    }
+  }
+
+  @Test
+  public void rawDeflate() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try (OutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+      out.write(TEXT);
+    }
+    deflater.end();
+    Assert.assertEquals(decode(ContentCoding.DEFLATE, compressed.toByteArray()), TEXT);
+  }
+}
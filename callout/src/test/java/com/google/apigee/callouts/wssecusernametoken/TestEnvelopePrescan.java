@@ -0,0 +1,107 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestEnvelopePrescan {
+  private static final String SOAP11 = "http://schemas.xmlsoap.org/soap/envelope/";
+
+  private static String reject(String content) {
+    try {
+      EnvelopePrescan.check(content);
+    } catch (IllegalStateException e) {
+      // the byte path must agree with the String path
+      try {
+        EnvelopePrescan.check(content.getBytes(StandardCharsets.UTF_8));
+        Assert.fail("bytes accepted: " + content);
+      } catch (IllegalStateException e2) {
+        Assert.assertEquals(e2.getMessage(), e.getMessage());
+      }
+      return e.getMessage();
+    }
+    Assert.fail("accepted: " + content);
+    return null;
+  }
+
+  private static void accept(String content) {
+    EnvelopePrescan.check(content);
+    EnvelopePrescan.check(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void rejects() {
+    Assert.assertEquals(
+        reject("{\"order\": 17}"), "Not a SOAP Envelope, the content is not XML.");
+    Assert.assertEquals(
+        reject("<!DOCTYPE html>\n<html><body>Not Found</body></html>"),
+        "Not a SOAP Envelope, incorrect root element.");
+    Assert.assertEquals(
+        reject("<?xml version='1.0'?><!-- x --><order id='17'/>"),
+        "Not a SOAP Envelope, incorrect root element.");
+    Assert.assertEquals(
+        reject("<s:Envelope xmlns:s='urn:not-soap'><s:Body/></s:Envelope>"),
+        "Not a SOAP Envelope, unsupported namespace.");
+    Assert.assertEquals(
+        reject("<Envelope><Body/></Envelope>"), "Not a SOAP Envelope, unsupported namespace.");
+  }
+
+  @Test
+  public void accepts() {
+    accept("<soap:Envelope xmlns:soap='" + SOAP11 + "'><soap:Body/></soap:Envelope>");
+    accept(
+        "\uFEFF<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- captured -->\n"
+            + "<Envelope xmlns=\""
+            + SOAP11
+            + "\"><Body/></Envelope>");
+    accept("<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'>");
+  }
+
+  @Test
+  public void undecidedIsLeftToTheParser() {
+    // the namespace declaration is beyond the prefix that is scanned
+    StringBuilder sb = new StringBuilder("<soap:Envelope");
+    for (int i = 0; i < 100; i++) {
+      sb.append(" xmlns:ns").append(i).append("='urn:example:").append(i).append("'");
+    }
+    sb.append(" xmlns:soap='urn:not-soap'>");
+    accept(sb.toString());
+    // an internal subset, and UTF-16
+    accept("<!DOCTYPE x [<!ENTITY e 'e'>]><x/>");
+    EnvelopePrescan.check("<order/>".getBytes(StandardCharsets.UTF_16));
+    accept("");
+  }
+
+  @Test
+  public void streamIsRewound() throws Exception {
+    byte[] content =
+        ("<soap:Envelope xmlns:soap='" + SOAP11 + "'><soap:Body/></soap:Envelope>")
+            .getBytes(StandardCharsets.UTF_8);
+    InputStream in = EnvelopePrescan.check(new ByteArrayInputStream(content));
+    byte[] read = new byte[content.length];
+    int n = 0;
+    int count;
+    while (n < read.length && (count = in.read(read, n, read.length - n)) > 0) {
+      n += count;
+    }
+    Assert.assertEquals(read, content);
+    Assert.assertEquals(in.read(), -1);
+  }
+}
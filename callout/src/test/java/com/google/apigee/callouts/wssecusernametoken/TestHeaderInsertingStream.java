@@ -0,0 +1,78 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestHeaderInsertingStream {
+
+  /* Writes the input in chunks of the given size, and returns the output. */
+  private static String insert(String input, String marker, int chunk) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TokenInjector.HeaderInsertingStream stream =
+        new TokenInjector.HeaderInsertingStream(
+            out,
+            marker.getBytes(StandardCharsets.UTF_8),
+            target -> target.write("[HEADER]".getBytes(StandardCharsets.UTF_8)));
+    byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < bytes.length; i += chunk) {
+      if (chunk == 1) {
+        stream.write(bytes[i]);
+      } else {
+        stream.write(bytes, i, Math.min(chunk, bytes.length - i));
+      }
+    }
+    stream.finish();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void replacesTheMarker() throws Exception {
+    String input = "<a><b/><!--mark--><c>text</c></a>";
+    for (int chunk : new int[] {1, 2, 3, 5, 7, 1000}) {
+      Assert.assertEquals(
+          insert(input, "<!--mark-->", chunk), "<a><b/>[HEADER]<c>text</c></a>", "chunk " + chunk);
+    }
+  }
+
+  @Test
+  public void partialMatchesArePassedThrough() throws Exception {
+    // prefixes of the marker that overlap the marker itself
+    String input = "<!--mar<!--<!--mark<!--mark-->--><!-x";
+    for (int chunk : new int[] {1, 2, 4, 1000}) {
+      Assert.assertEquals(
+          insert(input, "<!--mark-->", chunk),
+          "<!--mar<!--<!--mark[HEADER]--><!-x",
+          "chunk " + chunk);
+    }
+    for (int chunk : new int[] {1, 3, 1000}) {
+      Assert.assertEquals(insert("aaaabaab", "aab", chunk), "aa[HEADER]aab", "chunk " + chunk);
+    }
+  }
+
+  @Test
+  public void onlyTheFirstMarkerIsReplaced() throws Exception {
+    Assert.assertEquals(insert("x<!--m-->y<!--m-->z", "<!--m-->", 1), "x[HEADER]y<!--m-->z");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void missingMarker() throws Exception {
+    insert("<a><!--mar--></a>", "<!--mark-->", 4);
+  }
+}
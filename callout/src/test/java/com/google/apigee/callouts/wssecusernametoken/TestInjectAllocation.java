@@ -0,0 +1,146 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Allocation budgets for Inject.execute, per call, after warm-up. Each scenario runs each engine
+ * over a small and a large message, and fails if the bytes allocated on the calling thread exceed
+ * a fixed allowance plus an allowance per byte of message. The budgets are about twice what the
+ * current code allocates; a change that trips one should be looked at, not just rebudgeted.
+ */
+public class TestInjectAllocation {
+  private static final int WARM_UP = 2000;
+  private static final int ITERATIONS = 500;
+
+  private static final String[] ENGINES = {"dom", "stax", "splice"};
+
+  // per engine: dom, stax and splice
+  private static final long[] BASE_BUDGET = {128 * 1024, 96 * 1024, 48 * 1024};
+  private static final double[] PER_BYTE_BUDGET = {32.0, 56.0, 6.0};
+
+  private static byte[] message(int targetSize) {
+    StringBuilder sb =
+        new StringBuilder(
+            "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>"
+                + "<soapenv:Body><ns1:items xmlns:ns1='http://ws.example.com/'>");
+    String tail = "</ns1:items></soapenv:Body></soapenv:Envelope>";
+    int i = 0;
+    while (sb.length() + tail.length() < targetSize) {
+      sb.append("<ns1:item id='").append(i++).append("'>The quick brown fox</ns1:item>");
+    }
+    return sb.append(tail).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      throw new SkipException("thread allocation counters are not available");
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      throw new SkipException("thread allocation counters are not available");
+    }
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    return threadBean;
+  }
+
+  /* Returns the bytes allocated per call to execute. */
+  private static long allocatedPerCall(Map<String, String> props, byte[] content) {
+    com.sun.management.ThreadMXBean threadBean = threadBean();
+    Inject callout = new Inject(props);
+    FakeMessage message = new FakeMessage();
+    FakeMessageContext msgCtxt = new FakeMessageContext(message, false);
+    FakeExecutionContext exeCtxt = new FakeExecutionContext();
+    for (int i = 0; i < WARM_UP; i++) {
+      message.setContent(new ByteArrayInputStream(content));
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    }
+    long threadId = Thread.currentThread().getId();
+    int failures = 0;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      message.setContent(new ByteArrayInputStream(content));
+      if (callout.execute(msgCtxt, exeCtxt) != ExecutionResult.SUCCESS) {
+        failures++;
+      }
+    }
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    // a call that fails early allocates less, and would pass the budget
+    Assert.assertEquals(failures, 0, "failed calls");
+    return allocated / ITERATIONS;
+  }
+
+  private static void checkBudget(String scenario, Map<String, String> props) {
+    for (int size : new int[] {1024, 64 * 1024}) {
+      byte[] content = message(size);
+      for (int e = 0; e < ENGINES.length; e++) {
+        Map<String, String> engineProps = new HashMap<String, String>(props);
+        engineProps.put("username", "emil@gaffanon.com");
+        engineProps.put("password", "Albatross1");
+        engineProps.put("engine", ENGINES[e]);
+        long perCall = allocatedPerCall(engineProps, content);
+        long budget = BASE_BUDGET[e] + (long) (PER_BYTE_BUDGET[e] * content.length);
+        String label = scenario + " " + ENGINES[e] + " " + content.length + " bytes";
+        Assert.assertTrue(
+            perCall <= budget, label + ": allocated " + perCall + " bytes, budget " + budget);
+      }
+    }
+  }
+
+  @Test
+  public void text() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "TEXT");
+    checkBudget("text", props);
+  }
+
+  @Test
+  public void digest() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "DIGEST");
+    checkBudget("digest", props);
+  }
+
+  @Test
+  public void expiry() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "DIGEST");
+    props.put("expiry", "5m");
+    checkBudget("expiry", props);
+  }
+
+  @Test
+  public void nonceAndCreated() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "TEXT");
+    props.put("want-nonce", "true");
+    props.put("want-created-time", "true");
+    checkBudget("nonceAndCreated", props);
+  }
+}
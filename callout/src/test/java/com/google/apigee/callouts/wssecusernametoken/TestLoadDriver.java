@@ -0,0 +1,78 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+public class TestLoadDriver {
+
+  /* A percentile is the upper bound of its bucket, which is about 3% wide. */
+  private static void assertWithinBucket(long actual, long expected) {
+    Assert.assertTrue(
+        actual >= expected && actual <= expected * 1.035, actual + " for " + expected);
+  }
+
+  @Test
+  public void histogramPercentiles() {
+    LoadDriver.Histogram histogram = new LoadDriver.Histogram();
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000L);
+    }
+    Assert.assertEquals(histogram.count(), 1000L);
+    Assert.assertEquals(histogram.max(), 1000000L);
+    assertWithinBucket(histogram.percentile(0.50), 500000L);
+    assertWithinBucket(histogram.percentile(0.99), 990000L);
+    assertWithinBucket(histogram.percentile(0.999), 999000L);
+    Assert.assertEquals(histogram.percentile(1.0), 1000000L);
+
+    LoadDriver.Histogram other = new LoadDriver.Histogram();
+    other.record(7L);
+    other.record(Long.MAX_VALUE);
+    histogram.add(other);
+    Assert.assertEquals(histogram.count(), 1002L);
+    Assert.assertEquals(histogram.max(), Long.MAX_VALUE);
+    Assert.assertEquals(histogram.percentile(0.0001), 7L);
+  }
+
+  @Test
+  public void badThreadsIsAUsageError() throws Exception {
+    Assert.assertNull(LoadDriver.run(new String[] {"--threads", "many"}));
+    Assert.assertNull(LoadDriver.run(new String[] {"--threads", "0"}));
+  }
+
+  /*
+   * Runs only when asked, with the options in the load.args system property,
+   * eg -Dload.args="--threads 32 --duration 60s --engine splice". The report
+   * goes to the TestNG reporter output.
+   */
+  @Test
+  public void sharedInstance() throws Exception {
+    String args = System.getProperty("load.args");
+    if (args == null || args.trim().isEmpty()) {
+      throw new SkipException("set load.args to run the load driver");
+    }
+    LoadDriver.Report report = LoadDriver.run(args.trim().split("\\s+"));
+    Assert.assertNotNull(report, "usage error");
+    Reporter.log(report.toString());
+    Assert.assertEquals(report.errors, 0L);
+    Assert.assertTrue(report.latency.count() > 0L);
+    Assert.assertTrue(report.latency.percentile(0.50) <= report.latency.percentile(0.99));
+    Assert.assertTrue(report.latency.percentile(0.99) <= report.latency.percentile(0.999));
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.google.apigee.util.ExposedByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMultipartSplicer {
+  private static final String ENVELOPE =
+      "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'>"
+          + "<soap:Body/></soap:Envelope>";
+
+  static byte[] mtom(String boundary, byte[] attachment) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(
+        ("--"
+                + boundary
+                + "\r\n"
+                + "Content-Type: application/xop+xml; charset=UTF-8; type=\"text/xml\"\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "Content-ID: <root.message@example.com>\r\n"
+                + "\r\n"
+                + ENVELOPE
+                + "\r\n--"
+                + boundary
+                + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "Content-ID: <attachment@example.com>\r\n"
+                + "\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1));
+    out.write(attachment);
+    out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    return out.toByteArray();
+  }
+
+  static byte[] attachment(int length) {
+    byte[] attachment = new byte[length];
+    for (int i = 0; i < attachment.length; i++) {
+      attachment[i] = (byte) (i * 31 + 7);
+    }
+    return attachment;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void notMultipart() {
+    Assert.assertNull(MultipartSplicer.forContentType(null));
+    Assert.assertNull(MultipartSplicer.forContentType("text/xml; charset=utf-8"));
+    Assert.assertNull(MultipartSplicer.forContentType("multipart/form-data; boundary=x"));
+  }
+
+  @Test
+  public void noBoundary() {
+    try {
+      MultipartSplicer.forContentType("multipart/related; type=\"application/xop+xml\"");
+      Assert.fail("accepted");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "multipart content type has no boundary");
+    }
+  }
+
+  @Test
+  public void rootPartIsReplaced_attachmentIsUntouched() throws Exception {
+    // larger than the chunk that is read, so that the rest stays in the source
+    byte[] attachment = attachment(100000);
+    byte[] original = mtom("uuid:0b3e-4c1a", attachment);
+    MultipartSplicer splicer =
+        MultipartSplicer.forContentType(
+            "Multipart/Related; type=\"application/xop+xml\";"
+                + " boundary=\"uuid:0b3e-4c1a\"; start=\"<root.message@example.com>\"");
+    InputStream source = new ByteArrayInputStream(original);
+    MultipartSplicer.Head head = splicer.readHead(source);
+    Assert.assertEquals(new String(head.getRootPart(), StandardCharsets.UTF_8), ENVELOPE);
+    Assert.assertTrue(source.available() > 0, "the attachment was read");
+
+    String replacement = ENVELOPE.replace("<soap:Body/>", "<soap:Header/><soap:Body/>");
+    ExposedByteArrayOutputStream rootPart = new ExposedByteArrayOutputStream();
+    rootPart.write(replacement.getBytes(StandardCharsets.UTF_8));
+    byte[] result = readAll(head.replaceRootPart(rootPart, source));
+
+    byte[] expected =
+        new String(original, StandardCharsets.ISO_8859_1)
+            .replace(ENVELOPE, replacement)
+            .getBytes(StandardCharsets.ISO_8859_1);
+    Assert.assertEquals(result, expected);
+  }
+
+  @Test
+  public void startSelectsTheRootPart() throws Exception {
+    String message =
+        "preamble\r\n--b\r\nContent-ID: <first>\r\n\r\nnot the root"
+            + "\r\n--b\r\nContent-ID: <second>\r\n\r\n"
+            + ENVELOPE
+            + "\r\n--b--\r\n";
+    MultipartSplicer.Head head =
+        MultipartSplicer.forContentType("multipart/related; boundary=b; start=\"<second>\"")
+            .readHead(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(new String(head.getRootPart(), StandardCharsets.UTF_8), ENVELOPE);
+  }
+
+  private static String reject(String contentType, String message) throws IOException {
+    try {
+      MultipartSplicer.forContentType(contentType)
+          .readHead(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)));
+    } catch (IllegalStateException e) {
+      return e.getMessage();
+    }
+    Assert.fail("accepted: " + message);
+    return null;
+  }
+
+  @Test
+  public void rejects() throws Exception {
+    String contentType = "multipart/related; boundary=b";
+    Assert.assertEquals(reject(contentType, ENVELOPE), "multipart message has no parts");
+    Assert.assertEquals(
+        reject(
+            "multipart/related; boundary=b; start=\"<x>\"",
+            "--b\r\n\r\n" + ENVELOPE + "\r\n--b--"),
+        "multipart message has no root part");
+    Assert.assertEquals(
+        reject(contentType, "--b\r\nContent-ID: <x>\r\n"), "multipart part has no end of headers");
+    Assert.assertEquals(
+        reject(contentType, "--b\r\n\r\n" + ENVELOPE),
+        "multipart part has no closing delimiter");
+    Assert.assertEquals(
+        reject(
+            contentType,
+            "--b\r\nContent-Transfer-Encoding: base64\r\n\r\nPHNvYXA6RW52ZWxvcGUvPg==\r\n--b--"),
+        "unsupported Content-Transfer-Encoding for the root part: base64");
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+public class TestWarmUp {
+  private static final String simpleSoap11 =
+      "<soapenv:Envelope xmlns:ns1='http://ws.example.com/'\n"
+          + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+          + "  <soapenv:Body>\n"
+          + "    <ns1:sumResponse>\n"
+          + "      <ns1:return>9</ns1:return>\n"
+          + "    </ns1:sumResponse>\n"
+          + "  </soapenv:Body>\n"
+          + "</soapenv:Envelope>";
+
+  /*
+   * A class loader of its own, as for a fresh deployment: the callout, the
+   * fakes and the Apigee interfaces are all loaded and initialized anew.
+   */
+  private static URLClassLoader freshLoader() {
+    Set<URL> urls = new LinkedHashSet<URL>();
+    for (Class<?> c :
+        new Class<?>[] {
+          Inject.class, FakeMessageContext.class, MessageContext.class, ExecutionContext.class
+        }) {
+      urls.add(c.getProtectionDomain().getCodeSource().getLocation());
+    }
+    return new URLClassLoader(urls.toArray(new URL[0]), null);
+  }
+
+  private static Object getStatic(ClassLoader loader, String className, String name)
+      throws Exception {
+    Field field = loader.loadClass(className).getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(null);
+  }
+
+  private static Object invokeStatic(
+      ClassLoader loader, String className, String name, Class<?>[] types, Object... args)
+      throws Exception {
+    Method method = loader.loadClass(className).getDeclaredMethod(name, types);
+    method.setAccessible(true);
+    return method.invoke(null, args);
+  }
+
+  private static boolean awaitWarmUp(ClassLoader loader, long timeoutMillis) throws Exception {
+    return (Boolean)
+        invokeStatic(
+            loader, WarmUp.class.getName(), "await", new Class<?>[] {long.class}, timeoutMillis);
+  }
+
+  /*
+   * Creates an Inject in the loader, waits for the warm-up if there is one,
+   * and checks the caches it fills. Returns the latency of the first execute,
+   * in microseconds.
+   */
+  private static long firstCall(ClassLoader loader, boolean warmUp) throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("password-encoding", "DIGEST");
+    // not the expiry the warm-up uses, so the time expression cache shows which ran
+    props.put("expiry", "7m");
+    props.put("output-variable", "output");
+    props.put("warm-up", String.valueOf(warmUp));
+
+    Class<?> fakeMessage = loader.loadClass("com.google.apigee.fakes.FakeMessage");
+    Object message = fakeMessage.getConstructor().newInstance();
+    Object msgCtxt =
+        loader
+            .loadClass("com.google.apigee.fakes.FakeMessageContext")
+            .getConstructor(loader.loadClass("com.apigee.flow.message.Message"))
+            .newInstance(message);
+    Object exeCtxt =
+        loader
+            .loadClass("com.google.apigee.fakes.FakeExecutionContext")
+            .getConstructor()
+            .newInstance();
+    msgCtxt
+        .getClass()
+        .getMethod("setVariable", String.class, Object.class)
+        .invoke(msgCtxt, "message.content", simpleSoap11);
+
+    Class<?> inject = loader.loadClass(Inject.class.getName());
+    Object callout = inject.getConstructor(Map.class).newInstance(props);
+    if (warmUp) {
+      Assert.assertTrue(awaitWarmUp(loader, 30000L), "warm-up did not finish");
+      // before the first execute, so that only the warm-up can have filled them
+      assertSharedCachesFilled(loader);
+    }
+    Method execute = null;
+    for (Method m : inject.getMethods()) {
+      if (m.getName().equals("execute")) execute = m;
+    }
+    long start = System.nanoTime();
+    Object result = execute.invoke(callout, msgCtxt, exeCtxt);
+    long elapsed = (System.nanoTime() - start) / 1000L;
+    Assert.assertEquals(result.toString(), "SUCCESS");
+    return elapsed;
+  }
+
+  /* The caches that the warm-up fills, which do not belong to one thread. */
+  private static void assertSharedCachesFilled(ClassLoader loader) throws Exception {
+    Assert.assertNotNull(
+        getStatic(loader, "com.google.apigee.util.XmlUtils", "builderFactory"), "builder factory");
+    Assert.assertNotNull(
+        getStatic(loader, "com.google.apigee.util.XmlUtils", "transformerFactory"),
+        "transformer factory");
+    Map<?, ?> generators =
+        (Map<?, ?>) getStatic(loader, "com.google.apigee.util.NonceGenerator", "generators");
+    Assert.assertFalse(generators.isEmpty(), "nonce generators");
+    Map<?, ?> times =
+        (Map<?, ?>) getStatic(loader, "com.google.apigee.util.TimeResolver", "cache");
+    Assert.assertTrue(times.containsKey("5m"), "time expressions");
+  }
+
+  @Test
+  public void warmUpOnItsOwnThread() throws Exception {
+    try (URLClassLoader loader = freshLoader()) {
+      // the constructor of the first Inject starts it
+      firstCall(loader, true);
+    }
+  }
+
+  @Test
+  public void warmUpInline() throws Exception {
+    try (URLClassLoader loader = freshLoader()) {
+      // as when the runtime does not permit threads
+      invokeStatic(loader, WarmUp.class.getName(), "startInline", new Class<?>[0]);
+      Assert.assertTrue(awaitWarmUp(loader, 0L), "warm-up did not run");
+
+      // the per-thread caches belong to this thread now
+      ThreadLocal<?> builders =
+          (ThreadLocal<?>) getStatic(loader, "com.google.apigee.util.XmlUtils", "builders");
+      Assert.assertNotNull(builders.get(), "document builder");
+      ThreadLocal<?> transformers =
+          (ThreadLocal<?>) getStatic(loader, "com.google.apigee.util.XmlUtils", "transformers");
+      Assert.assertNotNull(transformers.get(), "transformer");
+
+      // the warm-up has already run, so the constructor does not start it again
+      firstCall(loader, true);
+    }
+  }
+
+  /*
+   * The latency of the first call after a fresh deployment, with and without
+   * the warm-up. It is reported, not asserted: one sample of each is too
+   * noisy to compare on a shared machine.
+   */
+  @Test
+  public void coldAndWarmFirstCall() throws Exception {
+    long cold;
+    try (URLClassLoader loader = freshLoader()) {
+      cold = firstCall(loader, false);
+    }
+    long warm;
+    try (URLClassLoader loader = freshLoader()) {
+      warm = firstCall(loader, true);
+    }
+    Reporter.log(String.format("first call: cold %d us, after warm-up %d us", cold, warm));
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionResult;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestWssecUsernameTokenCheckNonceCallout extends CalloutTestBase {
+
+  private ExecutionResult check(String nonce) {
+    msgCtxt.setVariable("wssec_nonce", nonce);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("nonce", "{wssec_nonce}");
+    props.put("window", "2m");
+    return new CheckNonce(props).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void replayIsRejected() throws Exception {
+    String nonce = UUID.randomUUID().toString();
+    Assert.assertEquals(check(nonce), ExecutionResult.SUCCESS, "first use");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_nonce_replay"), "false");
+
+    // a different policy instance with the same settings shares the cache
+    Assert.assertEquals(check(nonce), ExecutionResult.ABORT, "second use");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_nonce_replay"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "the nonce has been used before");
+
+    Assert.assertEquals(check(nonce + "x"), ExecutionResult.SUCCESS, "another nonce");
+  }
+
+  @Test
+  public void nonceAndCreated() throws Exception {
+    String nonce = UUID.randomUUID().toString();
+    msgCtxt.setVariable("wssec_nonce", nonce);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("nonce", "{wssec_nonce}");
+    props.put("created", "{wssec_created}");
+    props.put("window", "2m");
+
+    Instant created = Instant.now().minusSeconds(10);
+    msgCtxt.setVariable("wssec_created", created.toString());
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_nonce_replay"), "true");
+
+    // the same nonce with another Created time is another pair
+    msgCtxt.setVariable("wssec_created", created.plusSeconds(1).toString());
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+  }
+
+  @Test
+  public void createdOutsideTheWindow() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("nonce", "{wssec_nonce}");
+    props.put("created", "{wssec_created}");
+    props.put("window", "2m");
+    msgCtxt.setVariable("wssec_nonce", UUID.randomUUID().toString());
+
+    // the cache may have forgotten a token this old, so it cannot be checked
+    msgCtxt.setVariable("wssec_created", Instant.now().minusSeconds(180).toString());
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "Created time is too old");
+
+    msgCtxt.setVariable("wssec_created", Instant.now().plusSeconds(180).toString());
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "Created time is in the future");
+
+    msgCtxt.setVariable("wssec_created", "yesterday");
+    Assert.assertEquals(new CheckNonce(props).execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "invalid Created time");
+  }
+
+  @Test
+  public void missingNonce() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("nonce", "{not-set}");
+    ExecutionResult result = new CheckNonce(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "nonce resolves to an empty string");
+  }
+}
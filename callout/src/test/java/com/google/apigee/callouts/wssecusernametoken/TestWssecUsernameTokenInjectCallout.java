@@ -16,22 +16,42 @@
 package com.google.apigee.callouts.wssecusernametoken;
 
 import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import com.google.apigee.util.TestSpillOutputStream;
 import com.google.apigee.xml.Namespaces;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 public class TestWssecUsernameTokenInjectCallout extends CalloutTestBase {
@@ -149,6 +169,32 @@ public class TestWssecUsernameTokenInjectCallout extends CalloutTestBase {
     Assert.assertNull(stacktrace, method + "stacktrace");
   }
 
+  @Test
+  public void twoBodies() throws Exception {
+    String method = "twoBodies() ";
+    String expectedError = "Not a SOAP Envelope, more than one Body.";
+    String twoBodies =
+        simpleSoap11.replace("</soapenv:Envelope>", "  <soapenv:Body/>\n</soapenv:Envelope>");
+    msgCtxt.setVariable("message.content", twoBodies);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("engine", "dom");
+    props.put("output-variable", "output");
+
+    Inject callout = new Inject(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Object errorOutput = msgCtxt.getVariable("wssec_error");
+    Assert.assertEquals(errorOutput, expectedError, "error not as expected");
+    Object stacktrace = msgCtxt.getVariable("wssec_stacktrace");
+    Assert.assertNull(stacktrace, method + "stacktrace");
+  }
+
   @Test
   public void validResult_noNonce_noCreated() throws Exception {
     validResult(false, false);
@@ -306,6 +352,55 @@ public class TestWssecUsernameTokenInjectCallout extends CalloutTestBase {
     Assert.assertEquals(resultingPasswordText, computedPasswordDigest);
   }
 
+  @Test
+  public void passwordFromCredentialIndex() throws Exception {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    msgCtxt.setVariable(
+        "credentials-1", "# partners\nemil@gaffanon.com = Albatross1\nsam@example.com = Pelican\n");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "not-this-one");
+    props.put("password-encoding", "DIGEST");
+    props.put("credentials-variable", "credentials-1");
+    props.put("output-variable", "output");
+
+    ExecutionResult result = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("wssec_error"));
+
+    String output = (String) msgCtxt.getVariable("output");
+    Document doc = docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "Username");
+    Assert.assertEquals(nl.getLength(), 1, "Username element");
+    Assert.assertEquals(nl.item(0).getTextContent(), "emil@gaffanon.com");
+    String nonce = doc.getElementsByTagNameNS(Namespaces.WSSE, "Nonce").item(0).getTextContent();
+    String created = doc.getElementsByTagNameNS(Namespaces.WSU, "Created").item(0).getTextContent();
+    String password =
+        doc.getElementsByTagNameNS(Namespaces.WSSE, "Password").item(0).getTextContent();
+
+    // the digest uses the password from the index, not the password property
+    String s = nonce + created + "Albatross1";
+    String expectedDigest =
+        Base64.getEncoder()
+            .encodeToString(
+                MessageDigest.getInstance("SHA1").digest(s.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(password, expectedDigest);
+  }
+
+  @Test
+  public void unknownUserInCredentialIndex() throws Exception {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    msgCtxt.setVariable("credentials-2", "sam@example.com = Pelican\n");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("credentials-variable", "credentials-2");
+    ExecutionResult result = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "no credentials for the username");
+  }
+
   @Test
   public void validResult_soap12() throws Exception {
     final String appliedUsername = "emil@gaffanon.com";
@@ -428,6 +523,16 @@ public class TestWssecUsernameTokenInjectCallout extends CalloutTestBase {
     String timestampCreated = timestampCreatedElement.getTextContent();
     Assert.assertNotNull(timestampCreated, "timestampCreated");
 
+    // timestamp-expires
+    nl = timestamp.getElementsByTagNameNS(Namespaces.WSU, "Expires");
+    Assert.assertEquals(nl.getLength(), 1, method + "Timestamp/Expires element");
+    String timestampExpires = ((Element) nl.item(0)).getTextContent();
+    Assert.assertEquals(
+        Instant.parse(timestampExpires).getEpochSecond()
+            - Instant.parse(timestampCreated).getEpochSecond(),
+        300L,
+        method + "expiry");
+
     // token-created
     nl = usernameToken.getElementsByTagNameNS(Namespaces.WSU, "Created");
     Assert.assertEquals(
@@ -481,4 +586,874 @@ public class TestWssecUsernameTokenInjectCallout extends CalloutTestBase {
     NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSU, "Timestamp");
     Assert.assertEquals(nl.getLength(), 0, method + "Timestamp element");
   }
+
+  private static final String soap11WithSecurity =
+      "<soapenv:Envelope xmlns:ns1='http://ws.example.com/'\n"
+          + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'\n"
+          + "  xmlns:o='http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd'>\n"
+          + "  <soapenv:Header>\n"
+          + "    <ns1:Routing>A</ns1:Routing>\n"
+          + "    <o:Security soapenv:mustUnderstand='1'><o:Other/></o:Security>\n"
+          + "  </soapenv:Header>\n"
+          + "  <soapenv:Body>\n"
+          + "    <ns1:sumResponse><ns1:return>9</ns1:return></ns1:sumResponse>\n"
+          + "  </soapenv:Body>\n"
+          + "</soapenv:Envelope>";
+
+  private String injectWithEngine(String engine, String soap, Map<String, String> extraProps)
+      throws Exception {
+    msgCtxt.setVariable("message.content", soap);
+    msgCtxt.setVariable("my-username", "emil@gaffanon.com");
+    msgCtxt.setVariable("my-password", "Albatross1");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "{my-username}");
+    props.put("password", "{my-password}");
+    props.put("engine", engine);
+    props.put("output-variable", "output-" + engine);
+    props.putAll(extraProps);
+
+    Inject callout = new Inject(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("wssec_error"), "error");
+    return (String) msgCtxt.getVariable("output-" + engine);
+  }
+
+  private static String describeStructure(Document doc) {
+    StringBuilder sb = new StringBuilder();
+    NodeList nl = doc.getElementsByTagName("*");
+    for (int i = 0; i < nl.getLength(); i++) {
+      Element element = (Element) nl.item(i);
+      sb.append("{")
+          .append(element.getNamespaceURI())
+          .append("}")
+          .append(element.getLocalName());
+      for (int j = 0; j < element.getAttributes().getLength(); j++) {
+        sb.append(" @").append(element.getAttributes().item(j).getNodeName());
+      }
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  private String compareEngines(String engine, String soap, Map<String, String> extraProps)
+      throws Exception {
+    String domOutput = injectWithEngine("dom", soap, extraProps);
+    String output = injectWithEngine(engine, soap, extraProps);
+    System.out.printf("** Output (" + engine + "):\n" + output + "\n");
+
+    Document domDoc =
+        docFromStream(new ByteArrayInputStream(domOutput.getBytes(StandardCharsets.UTF_8)));
+    Document doc = docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(describeStructure(doc), describeStructure(domDoc), "structure");
+    return output;
+  }
+
+  @Test
+  public void staxEngine_soap11() throws Exception {
+    compareEngines("stax", simpleSoap11, new HashMap<String, String>());
+  }
+
+  @Test
+  public void staxEngine_soap12_withTimestamp() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("expiry", "300s");
+    props.put("want-nonce", "true");
+    props.put("want-created-time", "true");
+    compareEngines("stax", simpleSoap12, props);
+  }
+
+  @Test
+  public void staxEngine_existingSecurityHeader() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("expiry", "5m");
+    compareEngines("stax", soap11WithSecurity, props);
+  }
+
+  @Test
+  public void staxEngine_digest() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "DIGEST");
+    String output = injectWithEngine("stax", simpleSoap12, props);
+    Document doc = docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+
+    NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+    Assert.assertEquals(nl.getLength(), 1, "UsernameToken element");
+    Element usernameToken = (Element) nl.item(0);
+    String passwordText =
+        usernameToken.getElementsByTagNameNS(Namespaces.WSSE, "Password").item(0).getTextContent();
+    String nonce =
+        usernameToken.getElementsByTagNameNS(Namespaces.WSSE, "Nonce").item(0).getTextContent();
+    String created =
+        usernameToken.getElementsByTagNameNS(Namespaces.WSU, "Created").item(0).getTextContent();
+
+    String s = nonce + created + "Albatross1";
+    String computedPasswordDigest =
+        Base64.getEncoder()
+            .encodeToString(
+                MessageDigest.getInstance("SHA1").digest(s.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(passwordText, computedPasswordDigest);
+  }
+
+  @Test
+  public void staxEngine_notSoap() throws Exception {
+    msgCtxt.setVariable("message.content", "<Envelope><Body/></Envelope>");
+    msgCtxt.setVariable("my-username", "emil@gaffanon.com");
+    msgCtxt.setVariable("my-password", "Albatross1");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "{my-username}");
+    props.put("password", "{my-password}");
+    props.put("engine", "stax");
+
+    Inject callout = new Inject(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("wssec_error"), "Not a SOAP Envelope, unsupported namespace.");
+  }
+
+  @Test
+  public void notXml_failsFast() throws Exception {
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      for (boolean fromMessage : new boolean[] {false, true}) {
+        String json = "{\"error\": \"not found\"}";
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("username", "emil@gaffanon.com");
+        props.put("password", "Albatross1");
+        props.put("engine", engine);
+        if (fromMessage) {
+          message.setContent(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        } else {
+          msgCtxt.setVariable("message.content", json);
+          props.put("source", "message.content");
+        }
+        ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(actualResult, ExecutionResult.ABORT, engine);
+        Assert.assertEquals(
+            msgCtxt.getVariable("wssec_error"),
+            "Not a SOAP Envelope, the content is not XML.",
+            engine);
+      }
+    }
+  }
+
+  @Test
+  public void spliceEngine_soap11() throws Exception {
+    String output = compareEngines("splice", simpleSoap11, new HashMap<String, String>());
+    // the Body is copied byte for byte
+    String body = simpleSoap11.substring(simpleSoap11.indexOf("<soapenv:Body>"));
+    Assert.assertTrue(output.endsWith(body), "body");
+  }
+
+  @Test
+  public void spliceEngine_soap12_withTimestamp() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("expiry", "300s");
+    props.put("password-encoding", "DIGEST");
+    compareEngines("splice", simpleSoap12, props);
+  }
+
+  @Test
+  public void spliceEngine_xmlDeclaration() throws Exception {
+    String soap = "<?xml version='1.0' encoding='UTF-8'?>\n" + simpleSoap12;
+    String output = compareEngines("splice", soap, new HashMap<String, String>());
+    Assert.assertTrue(output.startsWith("<?xml"), "declaration");
+  }
+
+  @Test
+  public void spliceEngine_fallback_existingSecurityHeader() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("expiry", "5m");
+    compareEngines("splice", soap11WithSecurity, props);
+  }
+
+  @Test
+  public void spliceEngine_fallback_comment() throws Exception {
+    String soap = "<!-- leading comment -->\n" + simpleSoap11;
+    compareEngines("splice", soap, new HashMap<String, String>());
+  }
+
+  @Test
+  public void spliceEngine_fallback_encoding() throws Exception {
+    String soap = "<?xml version='1.0' encoding='ISO-8859-1'?>\n" + simpleSoap11;
+    String output = compareEngines("splice", soap, new HashMap<String, String>());
+    Assert.assertFalse(output.startsWith("<?xml"), "declaration");
+  }
+
+  @Test
+  public void externalEntityNotResolved() throws Exception {
+    String soap =
+        "<!DOCTYPE soapenv:Envelope [ <!ENTITY xxe SYSTEM 'file:///etc/passwd'> ]>\n"
+            + simpleSoap11.replace("<ns1:return>9</ns1:return>", "<ns1:return>&xxe;</ns1:return>");
+    // run twice, to exercise the reused DocumentBuilder
+    for (int i = 0; i < 2; i++) {
+      String output = injectWithEngine("dom", soap, new HashMap<String, String>());
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      NodeList nl = doc.getElementsByTagNameNS("http://ws.example.com/", "return");
+      Assert.assertEquals(nl.item(0).getTextContent(), "", "entity content");
+    }
+  }
+
+  @Test
+  public void nonceAlgorithm() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("want-nonce", "true");
+    props.put("nonce-algorithm", "SHA1PRNG");
+    Set<String> nonces = new HashSet<String>();
+    for (int i = 0; i < 50; i++) {
+      String output = injectWithEngine("dom", simpleSoap11, props);
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "Nonce");
+      Assert.assertEquals(nl.getLength(), 1, "Nonce element");
+      String nonce = nl.item(0).getTextContent();
+      Assert.assertEquals(Base64.getDecoder().decode(nonce).length, 20, "nonce length");
+      Assert.assertTrue(nonces.add(nonce), "duplicate nonce");
+    }
+  }
+
+  @Test
+  public void unknownNonceAlgorithm() throws Exception {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("nonce-algorithm", "NotAnAlgorithm");
+
+    Inject callout = new Inject(props);
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Object errorOutput = msgCtxt.getVariable("wssec_error");
+    Assert.assertNotNull(errorOutput, "errorOutput");
+    Assert.assertTrue(((String) errorOutput).contains("NotAnAlgorithm"), "error");
+  }
+
+  @Test
+  public void propertyTemplates() throws Exception {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    msgCtxt.setVariable("user-local", "emil");
+    msgCtxt.setVariable("user-domain", "gaffanon.com");
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", " {user-local}@{user-domain} ");
+    props.put("password", "my{secret word}{}{not-set}");
+    props.put("output-variable", "output");
+
+    Inject callout = new Inject(props);
+    // run twice, the compiled properties are reused
+    for (int i = 0; i < 2; i++) {
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      String output = (String) msgCtxt.getVariable("output");
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      String username =
+          doc.getElementsByTagNameNS(Namespaces.WSSE, "Username").item(0).getTextContent();
+      Assert.assertEquals(username, "emil@gaffanon.com");
+      String password =
+          doc.getElementsByTagNameNS(Namespaces.WSSE, "Password").item(0).getTextContent();
+      Assert.assertEquals(password, "my{secret word}{}");
+    }
+  }
+
+  @Test
+  public void templateEscapesValues() throws Exception {
+    for (String engine : new String[] {"dom", "splice"}) {
+      msgCtxt.setVariable("message.content", simpleSoap12);
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("source", "message.content");
+      props.put("username", "Tom & Jerry <tj>");
+      props.put("password", "p<a>s&s");
+      props.put("engine", engine);
+      props.put("output-variable", "output");
+
+      Inject callout = new Inject(props);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine + " result");
+      String output = (String) msgCtxt.getVariable("output");
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      String username =
+          doc.getElementsByTagNameNS(Namespaces.WSSE, "Username").item(0).getTextContent();
+      Assert.assertEquals(username, "Tom & Jerry <tj>", engine + " username");
+      String password =
+          doc.getElementsByTagNameNS(Namespaces.WSSE, "Password").item(0).getTextContent();
+      Assert.assertEquals(password, "p<a>s&s", engine + " password");
+    }
+  }
+
+  @Test
+  public void passwordDigest() throws Exception {
+    String nonce = "LKqI6G/AikKCQrN0zqZFlg==";
+    String created = "2024-06-06T00:07:13Z";
+    for (String password : new String[] {"Secret123", "pässwörd", "Secret123"}) {
+      byte[] expected =
+          MessageDigest.getInstance("SHA1")
+              .digest((nonce + created + password).getBytes(StandardCharsets.UTF_8));
+      Assert.assertEquals(
+          PasswordDigest.compute(nonce, created, password),
+          Base64.getEncoder().encodeToString(expected),
+          password);
+    }
+  }
+
+  @Test
+  public void passwordDigest_allocation() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      throw new SkipException("thread allocation counters are not available");
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      throw new SkipException("thread allocation counters are not available");
+    }
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    String nonce = "LKqI6G/AikKCQrN0zqZFlg==";
+    String created = "2024-06-06T00:07:13Z";
+    // already encoded, as a CredentialIndex supplies it
+    byte[] password =
+        "this-is-a-fairly-long-password-to-make-copies-visible".getBytes(StandardCharsets.UTF_8);
+    final int iterations = 20000;
+    for (int i = 0; i < iterations; i++) {
+      PasswordDigest.compute(nonce, created, password);
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      PasswordDigest.compute(nonce, created, password);
+    }
+    long perCall = (threadBean.getThreadAllocatedBytes(threadId) - before) / iterations;
+    // The result String and its 28-byte array come to about 72 bytes. Building the
+    // aggregate String and its UTF-8 bytes alone would exceed 256.
+    Assert.assertTrue(perCall < 160, "allocated " + perCall + " bytes per digest");
+  }
+
+  @Test
+  public void prefixAlreadyBound() throws Exception {
+    // the default prefixes wsu and wsse are bound to other namespaces
+    String soap =
+        "<soapenv:Envelope xmlns:wsse='urn:not-wsse' xmlns:wsu='urn:not-wsu'\n"
+            + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+            + "  <soapenv:Body><wsse:thing><wsu:other/></wsse:thing></soapenv:Body>\n"
+            + "</soapenv:Envelope>";
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      String output = compareEngines(engine, soap, new HashMap<String, String>());
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      Element token =
+          (Element) doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken").item(0);
+      Assert.assertNotNull(token, engine + " UsernameToken");
+      Assert.assertTrue(token.getPrefix().startsWith("ns"), engine + " prefix");
+      Assert.assertTrue(token.hasAttributeNS(Namespaces.WSU, "Id"), engine + " wsu:Id");
+      Assert.assertEquals(doc.getElementsByTagNameNS("urn:not-wsse", "thing").getLength(), 1);
+    }
+  }
+
+  @Test
+  public void nodeId() throws Exception {
+    Map<String, String> extraProps = new HashMap<String, String>();
+    extraProps.put("node-id", "mp-7");
+    extraProps.put("expiry", "60s");
+    String output = injectWithEngine("dom", simpleSoap11, extraProps);
+    Document doc = docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    Element token = (Element) doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken").item(0);
+    Assert.assertTrue(token.getAttributeNS(Namespaces.WSU, "Id").startsWith("UT-mp-7-"));
+    Element timestamp = (Element) doc.getElementsByTagNameNS(Namespaces.WSU, "Timestamp").item(0);
+    Assert.assertTrue(timestamp.getAttributeNS(Namespaces.WSU, "Id").startsWith("TS-mp-7-"));
+
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil");
+    props.put("password", "secret");
+    props.put("node-id", "<mp7>");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertTrue(((String) msgCtxt.getVariable("wssec_error")).startsWith("node-id"));
+  }
+
+  @Test
+  public void concurrentExecute() throws Exception {
+    final int threads = 8;
+    final int iterations = 40;
+    final Set<String> ids = ConcurrentHashMap.newKeySet();
+    final AtomicInteger count = new AtomicInteger();
+    for (final String engine : new String[] {"dom", "stax", "splice"}) {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("password-encoding", "DIGEST");
+      props.put("expiry", "180s");
+      props.put("engine", engine);
+      props.put("output-variable", "output");
+      final Inject callout = new Inject(props); // one instance, as in Apigee
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        final String soap = (t % 2 == 0) ? simpleSoap11 : simpleSoap12;
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  for (int i = 0; i < iterations; i++) {
+                    FakeMessage message = new FakeMessage();
+                    message.setContent(soap);
+                    FakeMessageContext msgCtxt = new FakeMessageContext(message);
+                    ExecutionResult result = callout.execute(msgCtxt, new FakeExecutionContext());
+                    Assert.assertEquals(result, ExecutionResult.SUCCESS, engine);
+                    String output = (String) msgCtxt.getVariable("output");
+                    Document doc =
+                        docFromStream(
+                            new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+                    NodeList nl = doc.getElementsByTagName("*");
+                    for (int j = 0; j < nl.getLength(); j++) {
+                      String id = ((Element) nl.item(j)).getAttributeNS(Namespaces.WSU, "Id");
+                      if (!id.isEmpty()) {
+                        Assert.assertTrue(ids.add(id), engine + " duplicate id " + id);
+                        count.incrementAndGet();
+                      }
+                    }
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(); // rethrows any assertion failure
+      }
+      executor.shutdown();
+    }
+    // a Timestamp and a UsernameToken in each message
+    Assert.assertEquals(count.get(), 3 * threads * iterations * 2);
+    Assert.assertEquals(ids.size(), count.get());
+  }
+
+  @Test
+  public void defaultOutputStreamsIntoMessage() throws Exception {
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      message.setContent(simpleSoap12);
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+
+      Inject callout = new Inject(props);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine + " result");
+      // the result goes to the message content directly, not through a String variable
+      Assert.assertNull(msgCtxt.getVariable("message.content"), engine + " variable");
+      Document doc = docFromStream(message.getContentAsStream());
+      NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+      Assert.assertEquals(nl.getLength(), 1, engine + " UsernameToken");
+      nl = doc.getElementsByTagNameNS(Namespaces.SOAP12, "Body");
+      Assert.assertEquals(nl.getLength(), 1, engine + " Body");
+    }
+  }
+
+  @Test
+  public void multipart_injectsIntoRootPartOnly() throws Exception {
+    byte[] attachment = TestMultipartSplicer.attachment(50000);
+    byte[] original = TestMultipartSplicer.mtom("MIMEBoundary_2f1a", attachment);
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      message = new FakeMessage();
+      msgCtxt = new FakeMessageContext(message);
+      message.setHeader(
+          "Content-Type",
+          "multipart/related; type=\"application/xop+xml\"; boundary=MIMEBoundary_2f1a;"
+              + " start=\"<root.message@example.com>\"; start-info=\"text/xml\"");
+      message.setContent(new ByteArrayInputStream(original));
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine);
+
+      String output =
+          new String(readAll(message.getContentAsStream()), StandardCharsets.ISO_8859_1);
+      int rootStart = output.indexOf("<soap:Envelope");
+      int rootEnd = output.indexOf("</soap:Envelope>") + "</soap:Envelope>".length();
+      Document doc =
+          docFromStream(
+              new ByteArrayInputStream(
+                  output.substring(rootStart, rootEnd).getBytes(StandardCharsets.ISO_8859_1)));
+      NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+      Assert.assertEquals(nl.getLength(), 1, engine + " UsernameToken");
+
+      // everything after the root part is copied byte for byte
+      String originalText = new String(original, StandardCharsets.ISO_8859_1);
+      String tail = originalText.substring(originalText.indexOf("</soap:Envelope>") + 16);
+      Assert.assertEquals(output.substring(rootEnd), tail, engine + " attachment");
+      Assert.assertEquals(
+          output.substring(0, rootStart), originalText.substring(0, rootStart), engine);
+    }
+  }
+
+  @Test
+  public void multipart_rootPartInLatin1() throws Exception {
+    // no XML declaration; the charset is only in the Content-Type of the part
+    String envelope =
+        "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>"
+            + "<soap:Body><ns1:name xmlns:ns1='http://ws.example.com/'>Jos\u00e9</ns1:name>"
+            + "</soap:Body></soap:Envelope>";
+    String head =
+        "--b\r\n"
+            + "Content-Type: text/xml; charset=ISO-8859-1\r\n"
+            + "Content-ID: <root.message@example.com>\r\n"
+            + "\r\n";
+    String tail =
+        "\r\n--b\r\nContent-Type: application/octet-stream\r\n\r\n\u00ff\u0000\r\n--b--\r\n";
+    byte[] original = (head + envelope + tail).getBytes(StandardCharsets.ISO_8859_1);
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      message = new FakeMessage();
+      msgCtxt = new FakeMessageContext(message);
+      message.setHeader("Content-Type", "multipart/related; type=\"text/xml\"; boundary=b");
+      message.setContent(new ByteArrayInputStream(original));
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine);
+
+      String output =
+          new String(readAll(message.getContentAsStream()), StandardCharsets.ISO_8859_1);
+      Assert.assertTrue(output.startsWith(head), engine);
+      Assert.assertTrue(output.endsWith(tail), engine);
+      String rootPart = output.substring(head.length(), output.length() - tail.length());
+      Assert.assertTrue(rootPart.contains(">Jos\u00e9</ns1:name>"), engine + ": " + rootPart);
+      Assert.assertTrue(rootPart.contains(":UsernameToken"), engine);
+    }
+  }
+
+  @Test
+  public void multipart_requiresMessageContent() throws Exception {
+    message.setHeader("content-type", "multipart/related; boundary=b");
+    message.setContent(
+        new ByteArrayInputStream(TestMultipartSplicer.mtom("b", new byte[] {1, 2, 3})));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("output-variable", "output");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("wssec_error"),
+        "a multipart message can be written only to message.content");
+  }
+
+  @Test
+  public void compressedContent_isRecompressed() throws Exception {
+    for (ContentCoding coding : ContentCoding.values()) {
+      for (String engine : new String[] {"dom", "stax", "splice"}) {
+        message = new FakeMessage();
+        msgCtxt = new FakeMessageContext(message);
+        message.setHeader("Content-Encoding", coding.name().toLowerCase());
+        message.setContent(
+            new ByteArrayInputStream(
+                TestContentCoding.encode(coding, simpleSoap11.getBytes(StandardCharsets.UTF_8))));
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("username", "emil@gaffanon.com");
+        props.put("password", "Albatross1");
+        props.put("engine", engine);
+        ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, coding + " " + engine);
+
+        byte[] output = TestContentCoding.decode(coding, readAll(message.getContentAsStream()));
+        Document doc = docFromStream(new ByteArrayInputStream(output));
+        NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+        Assert.assertEquals(nl.getLength(), 1, coding + " " + engine);
+      }
+    }
+  }
+
+  @Test
+  public void compressedContent_toVariable() throws Exception {
+    message.setHeader("content-encoding", "gzip");
+    message.setContent(
+        new ByteArrayInputStream(
+            TestContentCoding.encode(
+                ContentCoding.GZIP, simpleSoap11.getBytes(StandardCharsets.UTF_8))));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("engine", "stax");
+    props.put("output-variable", "output");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    // a variable holds text, so it is not recompressed
+    String output = (String) msgCtxt.getVariable("output");
+    Document doc = docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+    Assert.assertEquals(nl.getLength(), 1);
+  }
+
+  @Test
+  public void unsupportedContentEncoding() throws Exception {
+    message.setHeader("content-encoding", "br");
+    message.setContent(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "unsupported Content-Encoding: br");
+  }
+
+  @Test
+  public void spillThreshold_largeMessage() throws Exception {
+    StringBuilder sb =
+        new StringBuilder(
+            "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>"
+                + "<soapenv:Body><ns1:items xmlns:ns1='http://ws.example.com/'>");
+    for (int i = 0; i < 5000; i++) {
+      sb.append("<ns1:item>").append(i).append("</ns1:item>");
+    }
+    String body = sb.append("</ns1:items></soapenv:Body>").toString();
+    String large = body + "</soapenv:Envelope>";
+    int before = TestSpillOutputStream.spillFiles();
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      message = new FakeMessage();
+      msgCtxt = new FakeMessageContext(message);
+      message.setContent(new ByteArrayInputStream(large.getBytes(StandardCharsets.UTF_8)));
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+      props.put("spill-threshold", "16KB");
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine);
+      Assert.assertNull(msgCtxt.getVariable("wssec_warning"), engine);
+
+      byte[] output = readAll(message.getContentAsStream());
+      Document doc = docFromStream(new ByteArrayInputStream(output));
+      NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+      Assert.assertEquals(nl.getLength(), 1, engine);
+      nl = doc.getElementsByTagNameNS("http://ws.example.com/", "item");
+      Assert.assertEquals(nl.getLength(), 5000, engine);
+      Assert.assertEquals(
+          TestSpillOutputStream.spillFiles(), before, engine + " files");
+    }
+  }
+
+  @Test
+  public void spillThreshold_invalid() throws Exception {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("source", "message.content");
+    props.put("output-variable", "output");
+    props.put("spill-threshold", "lots");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_warning"), "unrecognized spill-threshold");
+  }
+
+  private static Document docFromBytes(byte[] content, String encoding) throws Exception {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    InputSource source = new InputSource(new ByteArrayInputStream(content));
+    source.setEncoding(encoding);
+    return dbf.newDocumentBuilder().parse(source);
+  }
+
+  private static final String latin1Soap11 =
+      "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>"
+          + "<soapenv:Body><ns1:city xmlns:ns1='http://ws.example.com/'>"
+          + "Z\u00fcrich, S\u00e3o Paulo</ns1:city></soapenv:Body></soapenv:Envelope>";
+
+  @Test
+  public void encoding_latin1IsPreserved() throws Exception {
+    String[] prologs = {"<?xml version='1.0' encoding='ISO-8859-1'?>\n", ""};
+    for (String prolog : prologs) {
+      for (String engine : new String[] {"dom", "stax", "splice"}) {
+        message = new FakeMessage();
+        msgCtxt = new FakeMessageContext(message);
+        // without a declaration, the charset of the Content-Type says
+        message.setHeader("content-type", "text/xml; charset=ISO-8859-1");
+        message.setContent(
+            new ByteArrayInputStream(
+                (prolog + latin1Soap11).getBytes(StandardCharsets.ISO_8859_1)));
+        Map<String, String> props = new HashMap<String, String>();
+        // not representable in ISO-8859-1
+        props.put("username", "\u0141ukasz");
+        props.put("password", "Albatross1");
+        props.put("engine", engine);
+        ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+        String label = engine + (prolog.isEmpty() ? " content-type" : " declaration");
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, label);
+
+        byte[] output = readAll(message.getContentAsStream());
+        // the body is copied or re-encoded as ISO-8859-1, not transcoded to UTF-8
+        String text = new String(output, StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(text.contains("Z\u00fcrich, S\u00e3o Paulo"), label);
+
+        Document doc = docFromBytes(output, "ISO-8859-1");
+        NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "Username");
+        Assert.assertEquals(nl.getLength(), 1, label);
+        Assert.assertEquals(nl.item(0).getTextContent(), "\u0141ukasz", label);
+        nl = doc.getElementsByTagNameNS("http://ws.example.com/", "city");
+        Assert.assertEquals(nl.item(0).getTextContent(), "Z\u00fcrich, S\u00e3o Paulo", label);
+      }
+    }
+  }
+
+  @Test
+  public void encoding_utf16IsPreserved() throws Exception {
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      message = new FakeMessage();
+      msgCtxt = new FakeMessageContext(message);
+      message.setContent(
+          new ByteArrayInputStream(("\uFEFF" + latin1Soap11).getBytes(StandardCharsets.UTF_16LE)));
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine);
+
+      byte[] output = readAll(message.getContentAsStream());
+      Assert.assertEquals(output[0] & 0xff, 0xFE, engine + " BOM");
+      Assert.assertEquals(output[1] & 0xff, 0xFF, engine + " BOM");
+      Document doc = docFromStream(new ByteArrayInputStream(output));
+      NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+      Assert.assertEquals(nl.getLength(), 1, engine);
+      nl = doc.getElementsByTagNameNS("http://ws.example.com/", "city");
+      Assert.assertEquals(nl.item(0).getTextContent(), "Z\u00fcrich, S\u00e3o Paulo", engine);
+    }
+  }
+
+  /* The source value of each supported type other than String, made fresh for each use. */
+  private static Object sourceValue(String type, String xml) throws Exception {
+    byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+    switch (type) {
+      case "bytes":
+        return bytes;
+      case "buffer":
+        return ByteBuffer.wrap(bytes);
+      case "stream":
+        return new ByteArrayInputStream(bytes);
+      case "message":
+        FakeMessage upstream = new FakeMessage();
+        upstream.setContent(new ByteArrayInputStream(bytes));
+        return upstream;
+      default:
+        return docFromStream(new ByteArrayInputStream(bytes));
+    }
+  }
+
+  @Test
+  public void sourceValue_types() throws Exception {
+    for (String type : new String[] {"bytes", "buffer", "stream", "message", "document"}) {
+      for (String engine : new String[] {"dom", "stax", "splice"}) {
+        String label = type + " " + engine;
+        msgCtxt = new FakeMessageContext(message);
+        msgCtxt.setVariable("upstream", sourceValue(type, simpleSoap11));
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("source", "upstream");
+        props.put("output-variable", "output");
+        props.put("username", "emil@gaffanon.com");
+        props.put("password", "Albatross1");
+        props.put("engine", engine);
+        ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, label);
+        Assert.assertNull(msgCtxt.getVariable("wssec_error"), label);
+
+        String output = (String) msgCtxt.getVariable("output");
+        Document doc =
+            docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+        NodeList nl = doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken");
+        Assert.assertEquals(nl.getLength(), 1, label);
+        nl = doc.getElementsByTagNameNS("http://ws.example.com/", "return");
+        Assert.assertEquals(nl.item(0).getTextContent(), "9", label);
+      }
+    }
+  }
+
+  @Test
+  public void sourceValue_documentIsLeftAsItWas() throws Exception {
+    Document source =
+        docFromStream(new ByteArrayInputStream(simpleSoap11.getBytes(StandardCharsets.UTF_8)));
+    msgCtxt.setVariable("upstream", source);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "upstream");
+    props.put("output-variable", "output");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    for (int i = 0; i < 2; i++) {
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "execute " + i);
+      String output = (String) msgCtxt.getVariable("output");
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      Assert.assertEquals(
+          doc.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken").getLength(), 1);
+      // no token, and no placeholder, in the source Document
+      Assert.assertEquals(
+          source.getElementsByTagNameNS(Namespaces.WSSE, "UsernameToken").getLength(), 0);
+      Assert.assertFalse(output.contains("<!--"), "execute " + i);
+      Assert.assertNull(
+          source.getDocumentElement().getElementsByTagNameNS("*", "Header").item(0),
+          "execute " + i);
+    }
+  }
+
+  @Test
+  public void sourceValue_bytesKeepTheirEncoding() throws Exception {
+    byte[] latin1 =
+        ("<?xml version='1.0' encoding='ISO-8859-1'?>\n" + latin1Soap11)
+            .getBytes(StandardCharsets.ISO_8859_1);
+    for (String engine : new String[] {"dom", "stax", "splice"}) {
+      msgCtxt = new FakeMessageContext(message);
+      msgCtxt.setVariable("upstream", latin1);
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("source", "upstream");
+      props.put("output-variable", "output");
+      props.put("username", "emil@gaffanon.com");
+      props.put("password", "Albatross1");
+      props.put("engine", engine);
+      ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, engine);
+
+      String output = (String) msgCtxt.getVariable("output");
+      Document doc = docFromBytes(output.getBytes(StandardCharsets.ISO_8859_1), "ISO-8859-1");
+      NodeList nl = doc.getElementsByTagNameNS("http://ws.example.com/", "city");
+      Assert.assertEquals(nl.item(0).getTextContent(), "Z\u00fcrich, S\u00e3o Paulo", engine);
+    }
+  }
+
+  @Test
+  public void sourceValue_unsupportedType() throws Exception {
+    msgCtxt.setVariable("upstream", Integer.valueOf(42));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "upstream");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    ExecutionResult actualResult = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("wssec_error"),
+        "source variable has an unsupported type: java.lang.Integer");
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
 }
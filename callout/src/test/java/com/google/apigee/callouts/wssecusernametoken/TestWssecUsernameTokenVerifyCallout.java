@@ -0,0 +1,274 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.wssecusernametoken;
+
+import com.apigee.flow.execution.ExecutionResult;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestWssecUsernameTokenVerifyCallout extends CalloutTestBase {
+  private static final String simpleSoap11 =
+      "<soapenv:Envelope xmlns:ns1='http://ws.example.com/'\n"
+          + "  xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/'>\n"
+          + "  <soapenv:Body>\n"
+          + "    <ns1:sumResponse>\n"
+          + "      <ns1:return>9</ns1:return>\n"
+          + "    </ns1:sumResponse>\n"
+          + "  </soapenv:Body>\n"
+          + "</soapenv:Envelope>";
+
+  private static final String WSSE =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
+  private static final String WSU =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd";
+  private static final String PROFILE =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-username-token-profile-1.0";
+
+  /* A message with a UsernameToken, as a partner might send it; the body is left open. */
+  private static String inbound(String passwordType, String password, String extra, String body) {
+    return "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'>\n"
+        + "  <soap:Header>\n"
+        + "    <wsse:Security xmlns:wsse='"
+        + WSSE
+        + "' xmlns:wsu='"
+        + WSU
+        + "'>\n"
+        + extra
+        + "      <wsse:UsernameToken>\n"
+        + "        <wsse:Username>emil@gaffanon.com</wsse:Username>\n"
+        + "        <wsse:Password Type='"
+        + PROFILE
+        + "#"
+        + passwordType
+        + "'>"
+        + password
+        + "</wsse:Password>\n"
+        + "        <wsse:Nonce>ID79BmTDQ5z2hLt4MQQ8RQ==</wsse:Nonce>\n"
+        + "        <wsu:Created>"
+        + Instant.now().toString()
+        + "</wsu:Created>\n"
+        + "      </wsse:UsernameToken>\n"
+        + "    </wsse:Security>\n"
+        + "  </soap:Header>\n"
+        + body;
+  }
+
+  private ExecutionResult verify(String soap, Map<String, String> extraProps) {
+    msgCtxt.setVariable("message.content", soap);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("password", "Albatross1");
+    props.putAll(extraProps);
+    return new Verify(props).execute(msgCtxt, exeCtxt);
+  }
+
+  private String inject(Map<String, String> extraProps) {
+    msgCtxt.setVariable("message.content", simpleSoap11);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("username", "emil@gaffanon.com");
+    props.put("password", "Albatross1");
+    props.put("output-variable", "injected");
+    props.putAll(extraProps);
+    ExecutionResult result = new Inject(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS, "inject");
+    return (String) msgCtxt.getVariable("injected");
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    for (String encoding : new String[] {"TEXT", "DIGEST"}) {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("password-encoding", encoding);
+      props.put("expiry", "60s");
+      String soap = inject(props);
+
+      Map<String, String> verifyProps = new HashMap<String, String>();
+      verifyProps.put("username", "emil@gaffanon.com");
+      verifyProps.put("password-encoding", encoding);
+      ExecutionResult result = verify(soap, verifyProps);
+      Assert.assertEquals(result, ExecutionResult.SUCCESS, encoding);
+      Assert.assertNull(msgCtxt.getVariable("wssec_error"), encoding);
+      Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "true", encoding);
+      Assert.assertEquals(msgCtxt.getVariable("wssec_username"), "emil@gaffanon.com");
+      Assert.assertNotNull(msgCtxt.getVariable("wssec_expires"), encoding);
+    }
+  }
+
+  @Test
+  public void wrongPassword() throws Exception {
+    for (String encoding : new String[] {"TEXT", "DIGEST"}) {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("password-encoding", encoding);
+      String soap = inject(props);
+      Map<String, String> verifyProps = new HashMap<String, String>();
+      verifyProps.put("password", "Albatross2");
+      ExecutionResult result = verify(soap, verifyProps);
+      Assert.assertEquals(result, ExecutionResult.ABORT, encoding);
+      Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "password does not match");
+      Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "false", encoding);
+    }
+  }
+
+  @Test
+  public void oasisDigest() throws Exception {
+    // the digest over the decoded nonce, as defined in the UsernameToken profile
+    String created = Instant.now().toString();
+    byte[] nonce = Base64.getDecoder().decode("ID79BmTDQ5z2hLt4MQQ8RQ==");
+    MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+    sha1.update(nonce);
+    sha1.update((created + "Albatross1").getBytes(StandardCharsets.UTF_8));
+    String digest = Base64.getEncoder().encodeToString(sha1.digest());
+    String soap =
+        inbound("PasswordDigest", digest, "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("<wsu:Created>[^<]+<", "<wsu:Created>" + created + "<");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "true");
+  }
+
+  @Test
+  public void malformedNonce() throws Exception {
+    // the digest is right for the text of the nonce, but the nonce is not Base64
+    String created = Instant.now().toString();
+    String nonce = "not*base64!";
+    MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+    sha1.update((nonce + created + "Albatross1").getBytes(StandardCharsets.UTF_8));
+    String digest = Base64.getEncoder().encodeToString(sha1.digest());
+    String soap =
+        inbound("PasswordDigest", digest, "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("<wsu:Created>[^<]+<", "<wsu:Created>" + created + "<")
+            .replace("ID79BmTDQ5z2hLt4MQQ8RQ==", nonce);
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "invalid Nonce, not Base64");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "false");
+  }
+
+  /* A digest over the text of the nonce, as Inject computes it. */
+  private static String digest(String nonce, String created) throws Exception {
+    MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+    sha1.update((nonce + created + "Albatross1").getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(sha1.digest());
+  }
+
+  @Test
+  public void digestWithoutNonce() throws Exception {
+    String created = Instant.now().toString();
+    String soap =
+        inbound("PasswordDigest", digest("", created), "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("<wsu:Created>[^<]+<", "<wsu:Created>" + created + "<")
+            .replaceAll("\\s*<wsse:Nonce>[^<]+</wsse:Nonce>", "");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "PasswordDigest requires a Nonce");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "false");
+  }
+
+  @Test
+  public void digestWithoutCreated() throws Exception {
+    String nonce = "ID79BmTDQ5z2hLt4MQQ8RQ==";
+    String soap =
+        inbound("PasswordDigest", digest(nonce, ""), "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("\\s*<wsu:Created>[^<]+</wsu:Created>", "");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("wssec_error"), "PasswordDigest requires a Created time");
+    Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "false");
+  }
+
+  @Test
+  public void oldCreatedWithoutMaxAge() throws Exception {
+    // the default max-age applies
+    String created = Instant.now().minusSeconds(3600).toString();
+    String nonce = "ID79BmTDQ5z2hLt4MQQ8RQ==";
+    String soap =
+        inbound("PasswordDigest", digest(nonce, created), "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("<wsu:Created>[^<]+<", "<wsu:Created>" + created + "<");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "Created time is too old");
+
+    // a larger max-age allows it
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("max-age", "2h");
+    result = verify(soap, props);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+  }
+
+  @Test
+  public void bodyIsNotRead() throws Exception {
+    // the body is not well-formed, but reading stops at the end of the Header
+    String soap =
+        inbound("PasswordText", "Albatross1", "", "  <soap:Body><unclosed><&&&&<<>>>>>");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_valid"), "true");
+  }
+
+  @Test
+  public void expired() throws Exception {
+    String timestamp =
+        "      <wsu:Timestamp><wsu:Created>2024-06-06T00:07:13Z</wsu:Created>"
+            + "<wsu:Expires>2024-06-06T00:10:13Z</wsu:Expires></wsu:Timestamp>\n";
+    String soap =
+        inbound("PasswordText", "Albatross1", timestamp, "  <soap:Body/>\n</soap:Envelope>");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "the message has expired");
+  }
+
+  @Test
+  public void createdInFuture() throws Exception {
+    String future = Instant.now().plusSeconds(600).toString();
+    String soap =
+        inbound("PasswordText", "Albatross1", "", "  <soap:Body/>\n</soap:Envelope>")
+            .replaceAll("<wsu:Created>[^<]+<", "<wsu:Created>" + future + "<");
+    ExecutionResult result = verify(soap, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "Created time is in the future");
+
+    // a larger skew allows it
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("clock-skew", "15m");
+    result = verify(soap, props);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+  }
+
+  @Test
+  public void wrongPasswordType() throws Exception {
+    String soap = inbound("PasswordText", "Albatross1", "", "  <soap:Body/>\n</soap:Envelope>");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("password-encoding", "digest");
+    ExecutionResult result = verify(soap, props);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "password Type is not DIGEST");
+  }
+
+  @Test
+  public void noUsernameToken() throws Exception {
+    ExecutionResult result = verify(simpleSoap11, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("wssec_error"), "No UsernameToken found.");
+  }
+}
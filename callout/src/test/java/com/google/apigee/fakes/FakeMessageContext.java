@@ -27,9 +27,16 @@ import java.util.Map;
 public class FakeMessageContext implements MessageContext {
   private Map<String, Object> variables;
   private Message message;
+  private final boolean verbose;
 
   public FakeMessageContext(Message message) {
+    this(message, true);
+  }
+
+  /* verbose is false to set variables without printing them, eg when measuring. */
+  public FakeMessageContext(Message message, boolean verbose) {
     this.message = message;
+    this.verbose = verbose;
     getVariables();
   }
 
@@ -49,7 +56,9 @@ public class FakeMessageContext implements MessageContext {
   }
 
   public boolean setVariable(final String name, final Object value) {
-    System.out.printf("set(%s) = %s\n", name, value.toString());
+    if (verbose) {
+      System.out.printf("set(%s) = %s\n", name, value.toString());
+    }
     getVariables().put(name, value);
     return true;
   }
@@ -0,0 +1,90 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCredentialIndex {
+  private static final long NOW = 1717632433000L; // 2024-06-06T00:07:13Z
+
+  @Test
+  public void parse() throws Exception {
+    CredentialIndex index =
+        CredentialIndex.parse(
+            "# comment\nemil@gaffanon.com = Albatross1\nsam\\:x : Pelícano  \n", NOW);
+    Assert.assertEquals(index.size(), 2);
+    Assert.assertEquals(index.get("emil@gaffanon.com").password, "Albatross1");
+    CredentialIndex.Credential credential = index.get("sam:x");
+    Assert.assertEquals(credential.password, "Pelícano");
+    Assert.assertEquals(credential.passwordUtf8, "Pelícano".getBytes(StandardCharsets.UTF_8));
+    Assert.assertNull(index.get("nobody"));
+  }
+
+  @Test
+  public void refreshAfterTtl() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    String source = "test:refreshAfterTtl";
+    CredentialIndex first =
+        CredentialIndex.getInstance(
+            source, 60000L, () -> "u = p" + loads.incrementAndGet(), NOW);
+    Assert.assertEquals(first.get("u").password, "p1");
+    CredentialIndex same =
+        CredentialIndex.getInstance(
+            source, 60000L, () -> "u = p" + loads.incrementAndGet(), NOW + 59999L);
+    Assert.assertSame(same, first);
+    CredentialIndex refreshed =
+        CredentialIndex.getInstance(
+            source, 60000L, () -> "u = p" + loads.incrementAndGet(), NOW + 60000L);
+    Assert.assertEquals(refreshed.get("u").password, "p2");
+    Assert.assertEquals(loads.get(), 2);
+  }
+
+  @Test
+  public void failedRefreshKeepsPreviousIndex() throws Exception {
+    String source = "test:failedRefresh";
+    CredentialIndex.getInstance(source, 1000L, () -> "u = p", NOW);
+    CredentialIndex stale =
+        CredentialIndex.getInstance(
+            source,
+            1000L,
+            () -> {
+              throw new IllegalStateException("unavailable");
+            },
+            NOW + 5000L);
+    Assert.assertEquals(stale.get("u").password, "p");
+    // the failed attempt counts as a load, so there is no retry until another ttl has passed
+    CredentialIndex again =
+        CredentialIndex.getInstance(source, 1000L, () -> "u = q", NOW + 5500L);
+    Assert.assertEquals(again.get("u").password, "p");
+    CredentialIndex retried =
+        CredentialIndex.getInstance(source, 1000L, () -> "u = q", NOW + 6000L);
+    Assert.assertEquals(retried.get("u").password, "q");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void failedFirstLoad() throws Exception {
+    CredentialIndex.getInstance(
+        "test:failedFirstLoad",
+        1000L,
+        () -> {
+          throw new IllegalStateException("unavailable");
+        },
+        NOW);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestNonceReplayCache {
+  private static final long NOW = 1717632433000L; // 2024-06-06T00:07:13Z
+
+  @Test
+  public void window() {
+    NonceReplayCache cache = new NonceReplayCache(60000L, 1000);
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW), NonceReplayCache.Result.NEW);
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW + 1), NonceReplayCache.Result.REPLAY);
+    // still remembered at the end of the window
+    Assert.assertEquals(
+        cache.checkAndRecord("abc", NOW + 60000L), NonceReplayCache.Result.REPLAY);
+    // forgotten once its bucket has expired
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW + 80000L), NonceReplayCache.Result.NEW);
+  }
+
+  @Test
+  public void capacity() {
+    NonceReplayCache cache = new NonceReplayCache(60000L, 8 * 64);
+    int full = 0;
+    for (int i = 0; i < 10000; i++) {
+      NonceReplayCache.Result result = cache.checkAndRecord("nonce-" + i, NOW);
+      Assert.assertNotEquals(result, NonceReplayCache.Result.REPLAY, "nonce-" + i);
+      if (result == NonceReplayCache.Result.FULL) {
+        full++;
+      }
+    }
+    // a burst fills the whole capacity, in one bucket
+    Assert.assertEquals(10000 - full, 8 * 64);
+    // everything recorded is still remembered
+    for (int i = 0; i < 10000 - full; i++) {
+      Assert.assertEquals(
+          cache.checkAndRecord("nonce-" + i, NOW + 1000L), NonceReplayCache.Result.REPLAY);
+    }
+    // still full, until the bucket of the burst leaves the window
+    Assert.assertEquals(
+        cache.checkAndRecord("nonce-x", NOW + 60000L), NonceReplayCache.Result.FULL);
+    Assert.assertEquals(
+        cache.checkAndRecord("nonce-x", NOW + 80000L), NonceReplayCache.Result.NEW);
+  }
+
+  @Test
+  public void capacityAcrossBuckets() {
+    // a skewed arrival: most of the capacity in one bucket, the rest spread out
+    NonceReplayCache cache = new NonceReplayCache(80000L, 1000);
+    int recorded = 0;
+    for (int i = 0; i < 900; i++) {
+      if (cache.checkAndRecord("a-" + i, NOW) == NonceReplayCache.Result.NEW) recorded++;
+    }
+    for (int i = 0; i < 200; i++) {
+      long t = NOW + 10000L * (1 + i % 7);
+      if (cache.checkAndRecord("b-" + i, t) == NonceReplayCache.Result.NEW) recorded++;
+    }
+    Assert.assertEquals(recorded, 1000);
+  }
+
+  @Test
+  public void nonceAndCreated() {
+    NonceReplayCache cache = new NonceReplayCache(60000L, 1000);
+    String created = "2024-06-06T00:07:13Z";
+    Assert.assertEquals(cache.checkAndRecord("abc", created, NOW), NonceReplayCache.Result.NEW);
+    Assert.assertEquals(
+        cache.checkAndRecord("abc", created, NOW + 1), NonceReplayCache.Result.REPLAY);
+    Assert.assertEquals(
+        cache.checkAndRecord("abc", "2024-06-06T00:07:14Z", NOW + 1),
+        NonceReplayCache.Result.NEW);
+    // the pair is not the nonce alone, nor a simple concatenation
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW + 1), NonceReplayCache.Result.NEW);
+    Assert.assertEquals(
+        cache.checkAndRecord("abc" + created, NOW + 1), NonceReplayCache.Result.NEW);
+  }
+
+  @Test
+  public void clockGoingBack() {
+    NonceReplayCache cache = new NonceReplayCache(60000L, 1000);
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW), NonceReplayCache.Result.NEW);
+    Assert.assertEquals(
+        cache.checkAndRecord("def", NOW - 120000L), NonceReplayCache.Result.NEW);
+    Assert.assertEquals(cache.checkAndRecord("abc", NOW), NonceReplayCache.Result.REPLAY);
+    Assert.assertEquals(cache.checkAndRecord("def", NOW), NonceReplayCache.Result.REPLAY);
+  }
+
+  @Test
+  public void concurrentInsertsOfTheSameNonce() throws Exception {
+    final NonceReplayCache cache = new NonceReplayCache(60000L, 1000000);
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                int recorded = 0;
+                for (int i = 0; i < 20000; i++) {
+                  if (cache.checkAndRecord("n" + i, NOW) == NonceReplayCache.Result.NEW) {
+                    recorded++;
+                  }
+                }
+                return recorded;
+              }));
+    }
+    int total = 0;
+    for (Future<Integer> future : futures) {
+      total += future.get();
+    }
+    executor.shutdown();
+    // each nonce is recorded by exactly one thread
+    Assert.assertEquals(total, 20000);
+  }
+}
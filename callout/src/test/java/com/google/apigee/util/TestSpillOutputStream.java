@@ -0,0 +1,98 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSpillOutputStream {
+
+  public static int spillFiles() {
+    File[] files =
+        new File(System.getProperty("java.io.tmpdir"))
+            .listFiles((dir, name) -> name.startsWith("wssec-") && name.endsWith(".spill"));
+    return (files == null) ? 0 : files.length;
+  }
+
+  private static byte[] content(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 13 + 5);
+    }
+    return content;
+  }
+
+  private static byte[] read(ByteBuffer buffer) throws IOException {
+    byte[] read = new byte[buffer.remaining() + 1];
+    ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+    int n = 0;
+    int count;
+    while ((count = in.read(read, n, read.length - n)) > 0) {
+      n += count;
+    }
+    Assert.assertEquals(n, read.length - 1);
+    return Arrays.copyOf(read, n);
+  }
+
+  @Test
+  public void belowThreshold() throws Exception {
+    byte[] content = content(1000);
+    SpillOutputStream out = new SpillOutputStream(1000);
+    out.write(content, 0, 600);
+    out.write(content, 600, 400);
+    Assert.assertFalse(out.isSpilled());
+    ByteBuffer buffer = out.toByteBuffer();
+    Assert.assertTrue(buffer.hasArray());
+    Assert.assertEquals(read(buffer), content);
+  }
+
+  @Test
+  public void aboveThreshold() throws Exception {
+    int before = spillFiles();
+    byte[] content = content(300000);
+    SpillOutputStream out = new SpillOutputStream(1024);
+    for (int i = 0; i < content.length; i += 7000) {
+      out.write(content, i, Math.min(7000, content.length - i));
+    }
+    out.write('x');
+    Assert.assertTrue(out.isSpilled());
+    Assert.assertEquals(out.size(), content.length + 1L);
+    Assert.assertEquals(spillFiles(), before + 1);
+
+    ByteBuffer buffer = out.toByteBuffer();
+    Assert.assertFalse(buffer.hasArray());
+    // the file is gone as soon as it is mapped, but the mapping can be read
+    Assert.assertEquals(spillFiles(), before);
+    byte[] read = read(buffer);
+    Assert.assertEquals(read.length, content.length + 1);
+    Assert.assertEquals(Arrays.copyOf(read, content.length), content);
+    Assert.assertEquals(read[content.length], (byte) 'x');
+  }
+
+  @Test
+  public void discard() throws Exception {
+    int before = spillFiles();
+    SpillOutputStream out = new SpillOutputStream(10);
+    out.write(content(100), 0, 100);
+    Assert.assertEquals(spillFiles(), before + 1);
+    out.discard();
+    Assert.assertEquals(spillFiles(), before);
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimeResolver {
+  private static final long S = 1000L;
+  private static final long M = 60L * S;
+  private static final long H = 60L * M;
+  private static final long D = 24L * H;
+
+  private static void check(String expression, long expected) {
+    Assert.assertEquals(
+        TimeResolver.resolveExpression(expression).longValue(), expected, expression);
+  }
+
+  @Test
+  public void simple() {
+    check("180", 180 * S);
+    check("180s", 180 * S);
+    check("5m", 5 * M);
+    check("5M", 5 * M);
+    check("2h", 2 * H);
+    check("1d", D);
+    check("1w", 7 * D);
+  }
+
+  @Test
+  public void compound() {
+    check("1h30m", H + 30 * M);
+    check("2d12h", 2 * D + 12 * H);
+    check("1w1d1h1m1s", 8 * D + H + M + S);
+    check("90m30s", 90 * M + 30 * S);
+  }
+
+  @Test
+  public void iso8601() {
+    check("PT5M", 5 * M);
+    check("pt90s", 90 * S);
+    check("PT1H30M", H + 30 * M);
+    check("P1DT12H", D + 12 * H);
+    check("P1D", D);
+    check("P2W", 14 * D);
+    check("PT05M", 5 * M);
+  }
+
+  @Test
+  public void invalid() {
+    for (String expression :
+        new String[] {
+          "", "0", "05m", "-5m", "5x", "m", "30m1h", "1h1h", "1h30", "5 m", "P", "PT", "P5M",
+          "PT5D", "P1DT", "PT0S", "PT5", "P1H", "99999999999999999999", "9999999999999999w"
+        }) {
+      check(expression, -1L);
+    }
+  }
+
+  @Test
+  public void cached() {
+    Assert.assertSame(
+        TimeResolver.resolveExpression("3h15m"), TimeResolver.resolveExpression("3h15m"));
+  }
+
+  @Test
+  public void expiryDate() {
+    ZonedDateTime before = ZonedDateTime.now(ZoneOffset.UTC);
+    ZonedDateTime expiry = TimeResolver.getExpiryDate("PT1H30M");
+    long seconds = expiry.toEpochSecond() - before.toEpochSecond();
+    Assert.assertTrue(seconds >= 5400 && seconds <= 5401, "seconds: " + seconds);
+    Assert.assertNull(TimeResolver.getExpiryDate("soon"));
+  }
+}
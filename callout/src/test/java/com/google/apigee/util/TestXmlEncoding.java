@@ -0,0 +1,93 @@
+// Copyright 2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestXmlEncoding {
+
+  private static XmlEncoding detect(byte[] content, String contentType) {
+    return XmlEncoding.detect(content, content.length, contentType);
+  }
+
+  private static XmlEncoding detect(String content, Charset charset, String contentType) {
+    return detect(content.getBytes(charset), contentType);
+  }
+
+  @Test
+  public void byteOrderMark() {
+    XmlEncoding encoding = detect("\uFEFF<a/>", StandardCharsets.UTF_8, "text/xml; charset=latin1");
+    Assert.assertTrue(encoding.isUtf8());
+    Assert.assertNull(encoding.getParserEncoding());
+
+    encoding = detect("\uFEFF<a/>", StandardCharsets.UTF_16LE, null);
+    Assert.assertEquals(encoding.getCharset(), StandardCharsets.UTF_16);
+    Assert.assertNull(encoding.getDeclaredName());
+    Assert.assertFalse(encoding.isAsciiCompatible());
+
+    encoding =
+        detect("<?xml version='1.0' encoding='UTF-16'?><a/>", StandardCharsets.UTF_16BE, null);
+    Assert.assertEquals(encoding.getCharset(), StandardCharsets.UTF_16BE);
+    Assert.assertEquals(encoding.getOutputCharset(), StandardCharsets.UTF_16);
+  }
+
+  @Test
+  public void declaration() {
+    XmlEncoding encoding =
+        detect(
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>",
+            StandardCharsets.ISO_8859_1,
+            "text/xml; charset=utf-8");
+    Assert.assertEquals(encoding.getCharset(), StandardCharsets.ISO_8859_1);
+    Assert.assertNull(encoding.getParserEncoding());
+    Assert.assertEquals(encoding.getDeclaredName(), "ISO-8859-1");
+    Assert.assertTrue(encoding.isAsciiCompatible());
+
+    // an encoding this JVM does not know is left to the parser
+    encoding =
+        detect("<?xml version='1.0' encoding='x-unknown'?><a/>", StandardCharsets.UTF_8, null);
+    Assert.assertTrue(encoding.isUtf8());
+    Assert.assertNull(encoding.getParserEncoding());
+  }
+
+  @Test
+  public void contentType() {
+    XmlEncoding encoding =
+        detect("<a/>", StandardCharsets.ISO_8859_1, "text/xml; Charset=\"windows-1252\"");
+    Assert.assertEquals(encoding.getCharset(), Charset.forName("windows-1252"));
+    Assert.assertEquals(encoding.getParserEncoding(), "windows-1252");
+    Assert.assertTrue(encoding.isAsciiCompatible());
+
+    Assert.assertSame(detect("<a/>", StandardCharsets.UTF_8, "text/xml"), XmlEncoding.UTF_8);
+    Assert.assertSame(detect("<a/>", StandardCharsets.UTF_8, null), XmlEncoding.UTF_8);
+    Assert.assertSame(
+        detect("<a/>", StandardCharsets.UTF_8, "text/xml; charset=bogus"), XmlEncoding.UTF_8);
+  }
+
+  @Test
+  public void encodeWithCharacterReferences() {
+    XmlEncoding latin1 =
+        detect("<a/>", StandardCharsets.ISO_8859_1, "text/xml; charset=ISO-8859-1");
+    byte[] encoded = latin1.encode("<u>\u00e9\u0141\uD83D\uDE00</u>");
+    Assert.assertEquals(
+        new String(encoded, StandardCharsets.ISO_8859_1), "<u>\u00e9&#321;&#128512;</u>");
+    Assert.assertEquals(
+        XmlEncoding.UTF_8.encode("\u0141"), "\u0141".getBytes(StandardCharsets.UTF_8));
+  }
+}